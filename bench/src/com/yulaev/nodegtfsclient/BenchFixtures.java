@@ -0,0 +1,29 @@
+package com.yulaev.nodegtfsclient;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+/** Loads the recorded node-gtfs payloads in bench/fixtures for the benchmarks. Payloads are used as
+ * recorded: repeating their elements to make bigger ones would give the parsers the same few strings
+ * over and over, which is far friendlier to the caches than a real response.
+ *
+ * @author iyulaev
+ */
+final class BenchFixtures {
+
+	//Benchmarks are run from the project root; override with -Dbench.fixtures=<dir>
+	static final String FIXTURE_DIR = System.getProperty("bench.fixtures", "bench/fixtures");
+
+	private BenchFixtures() { }
+
+	/** Reads fixture name.
+	 * @param name File name within the fixture directory; must hold a JSON array
+	 * @return The JSON array payload
+	 */
+	static String load(String name) throws IOException {
+		String json = new String(Files.readAllBytes(new File(FIXTURE_DIR, name).toPath()), "UTF-8").trim();
+		if(!json.startsWith("[") || !json.endsWith("]")) throw new IOException(name + " is not a JSON array");
+		return(json);
+	}
+}
@@ -0,0 +1,39 @@
+package com.yulaev.nodegtfsclient;
+
+import java.io.File;
+import java.nio.file.Files;
+
+/** Records live node-gtfs responses into bench/fixtures, for ParseBenchmark and LoadTest to run over.
+ * Point it at a server and pick an agency, route and stop; it saves the route list of the agency, the
+ * stop list of the route and the stop times of the stop, then prints the options that select them.
+ *
+ * Usage: FixtureRecorder serverUrl agency route_id stop_id
+ *
+ * @author iyulaev
+ */
+public class FixtureRecorder {
+
+	public static void main(String [] args) throws Exception {
+		if(args.length != 4) {
+			System.err.println("Usage: FixtureRecorder serverUrl agency route_id stop_id");
+			System.exit(1);
+		}
+		String agency = args[1], route_id = args[2], stop_id = args[3];
+		NodeGtfsUrlMaker urlMakr = new NodeGtfsUrlMaker(args[0]);
+
+		String routes = record(urlMakr.getRoutesByAgencyString(agency), "routes-" + agency + ".json");
+		String stops = record(urlMakr.getStopsByRoute(agency, route_id), "stops-" + agency + "-" + route_id + ".json");
+		String times = record(urlMakr.getStopDetails(agency, route_id, stop_id), "times-" + agency + "-" + stop_id + ".json");
+
+		System.out.println("ParseBenchmark: -p stopFixture=" + stops);
+		System.out.println("LoadTest: routeFixture=" + routes + " stopFixture=" + stops + " timesFixture=" + times);
+	}
+
+	private static String record(String url, String name) throws Exception {
+		String body = HttpTransport.getDefault().fetch(url, HttpTransport.STRING_HANDLER);
+		File file = new File(BenchFixtures.FIXTURE_DIR, name.replace('/', '_'));
+		Files.write(file.toPath(), body.getBytes("UTF-8"));
+		System.err.println("Recorded " + url + " (" + body.length() + " chars) to " + file);
+		return(file.getName());
+	}
+}
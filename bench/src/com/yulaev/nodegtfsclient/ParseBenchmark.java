@@ -0,0 +1,67 @@
+package com.yulaev.nodegtfsclient;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONTokener;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** JMH benchmarks for the response parsing pipeline: the decoders TransitDataFetcher uses, and for
+ * comparison a plain org.json JSONTokener/JSONArray parse of the same payloads. Each payload is a
+ * node-gtfs response recorded with FixtureRecorder. Only the stop list has a recorded payload so far;
+ * route list and stop time benchmarks should be added once real responses for them are recorded.
+ *
+ * Run with "-prof gc" to get allocation rates alongside throughput; see README.md.
+ *
+ * @author iyulaev
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParseBenchmark {
+
+	@Param({"stops-ac-transit-1R-86.json"})
+	public String stopFixture;
+
+	private String stopsJson;
+
+	@Setup
+	public void loadFixtures() throws Exception {
+		stopsJson = BenchFixtures.load(stopFixture);
+	}
+
+	@Benchmark
+	public ArrayList<SimpleStop> stopList() {
+		return(TransitDataFetcher.jsonStringToStopList(stopsJson, FetchListener.NO_OP));
+	}
+
+	/** Baseline: build the full org.json object tree for the stop payload */
+	@Benchmark
+	public JSONArray tokenizeStops() throws JSONException {
+		return(new JSONArray(new JSONTokener(stopsJson)));
+	}
+
+	/** Baseline: the tree parse plus the old JSONObject-based conversion to SimpleStops */
+	@Benchmark
+	public ArrayList<SimpleStop> tokenizeAndConvertStops() throws JSONException {
+		JSONArray array = new JSONArray(new JSONTokener(stopsJson));
+		ArrayList<SimpleStop> stops = new ArrayList<SimpleStop>(array.length());
+		for(int i = 0; i < array.length(); i++) stops.add(JSONSimpleStopGenerator.jsonToSimpleStop(array.getJSONObject(i)));
+		return(stops);
+	}
+}
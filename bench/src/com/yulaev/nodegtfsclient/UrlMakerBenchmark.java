@@ -0,0 +1,63 @@
+package com.yulaev.nodegtfsclient;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** JMH benchmarks for building node-gtfs API URLs with NodeGtfsUrlMaker.
+ *
+ * @author iyulaev
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class UrlMakerBenchmark {
+
+	private final NodeGtfsUrlMaker urlMakr = new NodeGtfsUrlMaker("http://localhost:8081");
+
+	//Non-final so that the JIT can't constant-fold the arguments
+	public String agency = "ac-transit", route_id = "1R-86", stop_id = "0306730";
+	public int lat = 37873253, lon = -122266510;
+	public double latD = 37.873253, lonD = -122.26651;
+
+	@Benchmark
+	public String routesByAgency() {
+		return(urlMakr.getRoutesByAgencyString(agency));
+	}
+
+	@Benchmark
+	public String stopsByRoute() {
+		return(urlMakr.getStopsByRoute(agency, route_id));
+	}
+
+	@Benchmark
+	public String routesByLocMicroDegrees() {
+		return(urlMakr.getRoutesByLoc(lat, lon));
+	}
+
+	@Benchmark
+	public String routesByLocDegrees() {
+		return(urlMakr.getRoutesByLoc(latD, lonD));
+	}
+
+	@Benchmark
+	public String stopsByLoc() {
+		return(urlMakr.getStopsByLoc(lat, lon));
+	}
+
+	@Benchmark
+	public String stopDetails() {
+		return(urlMakr.getStopDetails(agency, route_id, stop_id));
+	}
+}
@@ -0,0 +1,200 @@
+package com.yulaev.nodegtfsclient.loadtest;
+
+import java.io.File;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.yulaev.nodegtfsclient.FetchListener;
+import com.yulaev.nodegtfsclient.HttpTransport;
+import com.yulaev.nodegtfsclient.TransitDataFetcher;
+
+/** This class load-tests TransitDataFetcher against a StubNodeGtfsServer: it runs a fixed number of
+ * threads, each issuing queries back to back for a set duration, and reports throughput and latency
+ * percentiles. Options are given as key=value arguments:
+ * <pre>
+ *   concurrency=16      number of threads issuing queries
+ *   duration=30         measured run time in seconds (after warmup)
+ *   warmup=5            unmeasured run time in seconds
+ *   queries=routes,stops,routesNearby,stopsNearby,times   query mix, issued round-robin
+ *   latency=20          stub server delay in ms
+ *   jitter=10           stub server extra random delay in ms
+ *   failureRate=0.0     fraction of requests the stub fails with HTTP 500
+ *   gzip=false          whether the stub gzips its responses
+ *   cache=false         whether to keep TransitDataFetcher's ResponseCache enabled
+ *   maxConnections=concurrency   HttpTransport per-host connection limit
+ *   fixtures=bench/fixtures, routeFixture=..., stopFixture=..., timesFixture=...
+ *   server=             URL of a real node-gtfs server to test instead of the stub
+ * </pre>
+ *
+ * @author iyulaev
+ */
+public class LoadTest {
+
+	private static final String [] ALL_QUERIES = {"routes", "stops", "routesNearby", "stopsNearby", "times"};
+
+	//Query parameters; the stub ignores them, but they match the recorded fixtures for a real server
+	private static final String AGENCY = "ac-transit", ROUTE_ID = "1R-86", STOP_ID = "0306730";
+	private static final int LAT = 37873253, LON = -122266510;
+
+	public static void main(String [] args) throws Exception {
+		HashMap<String, String> opts = new HashMap<String, String>();
+		for(String arg : args) {
+			int eq = arg.indexOf('=');
+			if(eq < 0) { System.err.println("Options are key=value; got " + arg); System.exit(1); }
+			opts.put(arg.substring(0, eq), arg.substring(eq + 1));
+		}
+
+		int concurrency = Integer.parseInt(opt(opts, "concurrency", "16"));
+		long durationMs = Long.parseLong(opt(opts, "duration", "30")) * 1000L;
+		long warmupMs = Long.parseLong(opt(opts, "warmup", "5")) * 1000L;
+		String [] queries = opt(opts, "queries", String.join(",", ALL_QUERIES)).split(",");
+		for(String q : queries) if(!Arrays.asList(ALL_QUERIES).contains(q)) throw new IllegalArgumentException("Unknown query " + q);
+
+		int maxConnections = Integer.parseInt(opt(opts, "maxConnections", "" + concurrency));
+		HttpTransport.configureKeepAliveCache(maxConnections);
+
+		StubNodeGtfsServer stub = null;
+		String serverUrl = opts.get("server");
+		if(serverUrl == null) {
+			stub = new StubNodeGtfsServer(0, new File(opt(opts, "fixtures", "bench/fixtures")),
+					opt(opts, "routeFixture", "sample-routes-ac-transit.json"),
+					opt(opts, "stopFixture", "stops-ac-transit-1R-86.json"),
+					opt(opts, "timesFixture", "sample-times-abq-ride.json"),
+					Long.parseLong(opt(opts, "latency", "20")), Long.parseLong(opt(opts, "jitter", "10")),
+					Double.parseDouble(opt(opts, "failureRate", "0.0")));
+			stub.setCompression(Boolean.parseBoolean(opt(opts, "gzip", "false")));
+			stub.start();
+			serverUrl = stub.getUrl();
+		}
+
+		HttpTransport transport = new HttpTransport(5000, 15000, maxConnections);
+		TransitDataFetcher fetcher = new TransitDataFetcher(serverUrl, transport);
+		if(!Boolean.parseBoolean(opt(opts, "cache", "false"))) fetcher.setResponseCache(null);
+
+		final AtomicLong failures = new AtomicLong();
+		fetcher.setFetchListener(new FetchListener() {
+			public void onRequestFailed(int queryType, String url, Exception e) { failures.incrementAndGet(); }
+		});
+
+		Result result;
+		try {
+			System.err.println("Warming up for " + warmupMs / 1000 + " s against " + serverUrl);
+			run(fetcher, queries, concurrency, warmupMs);
+			long stubRequestsBefore = (stub == null) ? 0 : stub.getRequestCount();
+			failures.set(0);
+			System.err.println("Measuring for " + durationMs / 1000 + " s with " + concurrency + " threads");
+			result = run(fetcher, queries, concurrency, durationMs);
+			result.failures = failures.get();
+			if(stub != null) result.serverRequests = stub.getRequestCount() - stubRequestsBefore;
+		} finally {
+			if(stub != null) stub.stop();
+		}
+
+		result.print(System.out, concurrency);
+	}
+
+	private static String opt(Map<String, String> opts, String key, String def) {
+		String v = opts.get(key);
+		return(v == null ? def : v);
+	}
+
+	/** Runs concurrency threads issuing queries for durationMs and collects their latencies */
+	private static Result run(final TransitDataFetcher fetcher, final String [] queries, int concurrency, final long durationMs)
+			throws InterruptedException {
+		final long deadline = System.nanoTime() + durationMs * 1000000L;
+		final CountDownLatch done = new CountDownLatch(concurrency);
+		final Worker [] workers = new Worker[concurrency];
+
+		for(int i = 0; i < concurrency; i++) {
+			final Worker w = workers[i] = new Worker(i);
+			Thread t = new Thread(new Runnable() {
+				public void run() {
+					try {
+						int q = w.id;
+						while(System.nanoTime() < deadline) {
+							long start = System.nanoTime();
+							List<?> list = query(fetcher, queries[q++ % queries.length]);
+							w.record(System.nanoTime() - start, list.isEmpty());
+						}
+					} finally {
+						done.countDown();
+					}
+				}
+			}, "load-test-" + i);
+			t.setDaemon(true);
+			t.start();
+		}
+		done.await();
+
+		Result result = new Result(durationMs);
+		for(Worker w : workers) result.add(w);
+		return(result);
+	}
+
+	private static List<?> query(TransitDataFetcher fetcher, String query) {
+		if(query.equals("routes")) return(fetcher.fetchRouteList(AGENCY));
+		if(query.equals("stops")) return(fetcher.fetchStopListByRoute(AGENCY, ROUTE_ID));
+		if(query.equals("routesNearby")) return(fetcher.fetchRouteListByLatLon(LAT, LON));
+		if(query.equals("stopsNearby")) return(fetcher.fetchStopListByLatLon(LAT, LON));
+		return(fetcher.fetchPredictionByStop(AGENCY, ROUTE_ID, STOP_ID));
+	}
+
+	/** Latencies recorded by one thread */
+	private static class Worker {
+		final int id;
+		long [] latencies = new long[1024];
+		int count, empty;
+
+		Worker(int id) {
+			this.id = id;
+		}
+
+		void record(long nanos, boolean isEmpty) {
+			if(count == latencies.length) latencies = Arrays.copyOf(latencies, count * 2);
+			latencies[count++] = nanos;
+			if(isEmpty) empty++;
+		}
+	}
+
+	/** Merged latencies of all threads */
+	private static class Result {
+		final long durationMs;
+		final ArrayList<long []> parts = new ArrayList<long []>();
+		int count, empty;
+		long failures, serverRequests = -1;
+
+		Result(long durationMs) {
+			this.durationMs = durationMs;
+		}
+
+		void add(Worker w) {
+			parts.add(Arrays.copyOf(w.latencies, w.count));
+			count += w.count;
+			empty += w.empty;
+		}
+
+		void print(PrintStream out, int concurrency) {
+			long [] all = new long[count];
+			int pos = 0;
+			for(long [] part : parts) { System.arraycopy(part, 0, all, pos, part.length); pos += part.length; }
+			Arrays.sort(all);
+
+			out.printf("threads=%d queries=%d failed=%d empty=%d throughput=%.1f/s%n", concurrency, count, failures, empty, count * 1000.0 / durationMs);
+			if(serverRequests >= 0) out.printf("server requests=%d%n", serverRequests);
+			if(count == 0) return;
+			out.printf("latency ms: p50=%.2f p99=%.2f p999=%.2f max=%.2f%n",
+					percentile(all, 0.50), percentile(all, 0.99), percentile(all, 0.999), all[count - 1] / 1e6);
+		}
+
+		private static double percentile(long [] sorted, double p) {
+			int i = (int) Math.ceil(p * sorted.length) - 1;
+			return(sorted[Math.max(0, Math.min(sorted.length - 1, i))] / 1e6);
+		}
+	}
+}
@@ -0,0 +1,157 @@
+package com.yulaev.nodegtfsclient.loadtest;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/** This class is an in-process stand-in for a node-gtfs server. It answers the node-gtfs API endpoints
+ * that TransitDataFetcher uses with recorded payloads, whatever the query parameters in the path are,
+ * after a configurable delay (latency plus uniformly distributed jitter). A configurable fraction of
+ * requests fail with HTTP 500 instead. Every payload has an ETag, and conditional requests for the
+ * current one are answered with 304 Not Modified. With setCompression(true), payloads are sent gzipped
+ * to clients that accept it, like a compressing reverse proxy would.
+ *
+ * @author iyulaev
+ */
+public class StubNodeGtfsServer {
+
+	private final HttpServer server;
+	private final ExecutorService executor;
+	private final long latencyMs, jitterMs;
+	private final double failureRate;
+	private volatile boolean compress;
+
+	private final AtomicLong requests = new AtomicLong(), failures = new AtomicLong(), notModified = new AtomicLong();
+
+	/** Creates the stub; call start() to start answering requests.
+	 * @param port Port to listen on, or 0 to pick a free one
+	 * @param fixtureDir Directory holding the payloads
+	 * @param routeFixture Payload for /api/routes/ and /api/routesNearby/
+	 * @param stopFixture Payload for /api/stops/ and /api/stopsNearby/
+	 * @param timesFixture Payload for /api/times/
+	 * @param latencyMs Minimum delay before answering a request
+	 * @param jitterMs Maximum extra delay, chosen at random for each request
+	 * @param failureRate Fraction (0 to 1) of requests to answer with HTTP 500
+	 */
+	public StubNodeGtfsServer(int port, File fixtureDir, String routeFixture, String stopFixture, String timesFixture,
+			long latencyMs, long jitterMs, double failureRate) throws IOException {
+		this.latencyMs = latencyMs;
+		this.jitterMs = jitterMs;
+		this.failureRate = failureRate;
+
+		byte [] routes = Files.readAllBytes(new File(fixtureDir, routeFixture).toPath());
+		byte [] stops = Files.readAllBytes(new File(fixtureDir, stopFixture).toPath());
+		byte [] times = Files.readAllBytes(new File(fixtureDir, timesFixture).toPath());
+
+		//The JDK server writes headers and body separately; without TCP_NODELAY, Nagle's algorithm and the
+		//client's delayed ACKs add ~40 ms to every response
+		if(System.getProperty("sun.net.httpserver.nodelay") == null) System.setProperty("sun.net.httpserver.nodelay", "true");
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 1024);
+		server.createContext("/api/routes/", new Payload(routes));
+		server.createContext("/api/routesNearby/", new Payload(routes));
+		server.createContext("/api/stops/", new Payload(stops));
+		server.createContext("/api/stopsNearby/", new Payload(stops));
+		server.createContext("/api/times/", new Payload(times));
+
+		//Requests spend most of their time sleeping, so don't let the pool size limit concurrency
+		executor = Executors.newCachedThreadPool();
+		server.setExecutor(executor);
+	}
+
+	public void start() {
+		server.start();
+	}
+
+	public void stop() {
+		server.stop(0);
+		executor.shutdownNow();
+	}
+
+	/** @return The base URL of the stub, to hand to TransitDataFetcher */
+	public String getUrl() {
+		return("http://127.0.0.1:" + server.getAddress().getPort());
+	}
+
+	/** Sets whether to gzip payloads for clients that send "Accept-Encoding: gzip" (default false) */
+	public void setCompression(boolean compress) {
+		this.compress = compress;
+	}
+
+	/** @return The number of requests answered so far */
+	public long getRequestCount() { return requests.get(); }
+
+	/** @return The number of requests deliberately failed so far */
+	public long getFailureCount() { return failures.get(); }
+
+	/** @return The number of conditional requests answered with 304 Not Modified so far */
+	public long getNotModifiedCount() { return notModified.get(); }
+
+	/** Answers every request on one endpoint with the same payload */
+	private class Payload implements HttpHandler {
+		private final byte [] body, gzipped;
+		private final String etag;
+
+		Payload(byte [] body) throws IOException {
+			this.body = body;
+			this.etag = "\"" + Integer.toHexString(Arrays.hashCode(body)) + "\"";
+
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			GZIPOutputStream gz = new GZIPOutputStream(bytes);
+			gz.write(body);
+			gz.close();
+			this.gzipped = bytes.toByteArray();
+		}
+
+		public void handle(HttpExchange exchange) throws IOException {
+			try {
+				requests.incrementAndGet();
+				ThreadLocalRandom random = ThreadLocalRandom.current();
+				long delay = latencyMs + (jitterMs > 0 ? random.nextLong(jitterMs + 1) : 0);
+				if(delay > 0) Thread.sleep(delay);
+
+				if(random.nextDouble() < failureRate) {
+					failures.incrementAndGet();
+					exchange.sendResponseHeaders(500, -1);
+					return;
+				}
+
+				exchange.getResponseHeaders().set("ETag", etag);
+				if(etag.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+					notModified.incrementAndGet();
+					exchange.sendResponseHeaders(304, -1);
+					return;
+				}
+
+				byte [] payload = body;
+				String accept = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+				if(compress && accept != null && accept.contains("gzip")) {
+					payload = gzipped;
+					exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+				}
+
+				exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+				exchange.sendResponseHeaders(200, payload.length);
+				OutputStream out = exchange.getResponseBody();
+				out.write(payload);
+				out.close();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} finally {
+				exchange.close();
+			}
+		}
+	}
+}
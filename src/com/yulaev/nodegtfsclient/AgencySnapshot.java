@@ -0,0 +1,379 @@
+package com.yulaev.nodegtfsclient;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/** This class implements a persistent, memory-mapped snapshot of one agency's static data (its routes,
+ * and the stops on each route), so that a restarted client can serve route and stop lists straight
+ * away instead of re-downloading them all from node-gtfs.
+ *
+ * The file is a compact binary layout of fixed-size records plus a table of distinct strings:
+ * <pre>
+ *   header   magic, version, creation time, agency, route/stop/string counts
+ *   routes   one record per route: string refs, route type, and the range of stop records it owns
+ *   stops    one record per (route, stop): lat, lon and a string ref per SimpleStop String field
+ *   strings  offset table followed by the UTF-8 bytes of every distinct string
+ * </pre>
+ * Opening a snapshot maps the file with FileChannel.map() and checks the header; nothing else is read
+ * until asked for, and then only the records needed (e.g. one route's stops) are decoded.
+ *
+ * An open AgencySnapshot is immutable and safe to read from multiple threads.
+ *
+ * A mapped file stays mapped until its AgencySnapshot is garbage collected, and on Windows a mapped file
+ * can't be replaced. When write() finds the file in use, it leaves the new snapshot beside it as a
+ * generation file (the file's name plus ".g" and the creation time), and open() serves whichever is
+ * newer, moving the generation file into place once nothing maps the file any more.
+ *
+ * @author iyulaev
+ */
+public class AgencySnapshot {
+
+	private static final int MAGIC = 0x4E47534E; //"NGSN"
+	private static final int VERSION = 1;
+
+	private static final int HEADER_SIZE = 32;
+	private static final int ROUTE_FIELDS = 8;
+	private static final int ROUTE_RECORD_SIZE = ROUTE_FIELDS * 4;
+	private static final int STOP_FIELDS = 12;
+	private static final int STOP_RECORD_SIZE = STOP_FIELDS * 4;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final File file;
+	private final MappedByteBuffer buf;
+	private final long createdMillis;
+	private final String agency;
+	private final int routeCount, stopCount, stringCount;
+	private final int routesPos, stopsPos, stringOffsetsPos, stringDataPos;
+
+	private AgencySnapshot(File file, MappedByteBuffer buf) throws IOException {
+		this.file = file;
+		this.buf = buf;
+
+		if(buf.capacity() < HEADER_SIZE || buf.getInt(0) != MAGIC) throw new IOException(file + " is not an agency snapshot");
+		if(buf.getInt(4) != VERSION) throw new IOException(file + " has unsupported snapshot version " + buf.getInt(4));
+
+		createdMillis = buf.getLong(8);
+		int agencyRef = buf.getInt(16);
+		routeCount = buf.getInt(20);
+		stopCount = buf.getInt(24);
+		stringCount = buf.getInt(28);
+
+		//Check each count against the file size before multiplying, so a corrupt header can't overflow
+		long capacity = buf.capacity();
+		if(routeCount < 0 || stopCount < 0 || stringCount < 0 || routeCount > capacity / ROUTE_RECORD_SIZE
+				|| stopCount > capacity / STOP_RECORD_SIZE || stringCount >= capacity / 4)
+			throw new IOException(file + " is truncated or corrupt");
+		long stops = HEADER_SIZE + (long) routeCount * ROUTE_RECORD_SIZE;
+		long stringOffsets = stops + (long) stopCount * STOP_RECORD_SIZE;
+		long stringData = stringOffsets + ((long) stringCount + 1) * 4;
+		if(stringData > capacity || stringData + buf.getInt((int) stringOffsets + stringCount * 4) != capacity)
+			throw new IOException(file + " is truncated or corrupt");
+
+		routesPos = HEADER_SIZE;
+		stopsPos = (int) stops;
+		stringOffsetsPos = (int) stringOffsets;
+		stringDataPos = (int) stringData;
+
+		agency = string(agencyRef);
+	}
+
+	/** Opens and memory-maps a snapshot file, or its newest generation file if write() had to leave a 
+	 * newer snapshot beside it.
+	 * @param file The snapshot file, as written by write()
+	 * @return The opened snapshot
+	 * @throws IOException if the file can't be read or isn't a valid snapshot
+	 */
+	public static AgencySnapshot open(File file) throws IOException {
+		File generation = newestGeneration(file);
+		if(generation != null && generationMillis(generation) > createdMillisOf(file)) {
+			try { move(generation, file); }
+			catch (FileSystemException e) { return(map(generation)); } //file is still mapped
+		}
+		deleteGenerations(file);
+		return(map(file));
+	}
+
+	private static AgencySnapshot map(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			//The mapping stays valid after the channel is closed
+			FileChannel ch = raf.getChannel();
+			return(new AgencySnapshot(file, ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size())));
+		} finally {
+			raf.close();
+		}
+	}
+
+	/** Writes a snapshot of an agency's routes and stops. The file is written under a temporary name
+	 * and then moved into place, so readers never see a half-written snapshot. If file can't be replaced
+	 * because it is mapped (on Windows), the snapshot is left beside it as a generation file for open().
+	 * @param file The file to write
+	 * @param agency The agency key
+	 * @param routes The agency's routes
+	 * @param stopsByRoute The stops on each route, keyed by route ID. Routes with no entry get no stops.
+	 * @throws IOException if the file can't be written
+	 */
+	public static void write(File file, String agency, List<Route> routes, Map<String, List<SimpleStop>> stopsByRoute)
+			throws IOException {
+		StringTable strings = new StringTable();
+		int agencyRef = strings.ref(agency);
+
+		int stopTotal = 0;
+		for(Route r : routes) {
+			List<SimpleStop> stops = stopsByRoute.get(r.getRouteId());
+			if(stops != null) stopTotal += stops.size();
+		}
+
+		//Records first (collecting strings as we go), then the string table
+		ByteBuffer records = ByteBuffer.allocate(routes.size() * ROUTE_RECORD_SIZE + stopTotal * STOP_RECORD_SIZE);
+		int firstStop = 0;
+		for(Route r : routes) {
+			List<SimpleStop> stops = stopsByRoute.get(r.getRouteId());
+			int n = (stops == null) ? 0 : stops.size();
+			records.putInt(strings.ref(r.getRouteId())).putInt(strings.ref(r.getShortName())).putInt(strings.ref(r.getLongName()))
+				.putInt(strings.ref(r.getRouteURL())).putInt(strings.ref(r.getAgencyId())).putInt(r.getRouteType())
+				.putInt(firstStop).putInt(n);
+			firstStop += n;
+		}
+		for(Route r : routes) {
+			List<SimpleStop> stops = stopsByRoute.get(r.getRouteId());
+			if(stops == null) continue;
+			for(SimpleStop s : stops) {
+				records.putInt(s.lat).putInt(s.lon)
+					.putInt(strings.ref(s.agency)).putInt(strings.ref(s.routeName)).putInt(strings.ref(s.intersection))
+					.putInt(strings.ref(s.dirName)).putInt(strings.ref(s.headSign)).putInt(strings.ref(s.diruse))
+					.putInt(strings.ref(s.direction)).putInt(strings.ref(s.table)).putInt(strings.ref(s.isRTstr))
+					.putInt(strings.ref(s.stopcode));
+			}
+		}
+		records.flip();
+
+		long created = System.currentTimeMillis();
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		header.putInt(MAGIC).putInt(VERSION).putLong(created).putInt(agencyRef)
+			.putInt(routes.size()).putInt(stopTotal).putInt(strings.size());
+		header.flip();
+
+		File tmp = new File(file.getPath() + ".tmp");
+		RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+		try {
+			raf.setLength(0);
+			FileChannel ch = raf.getChannel();
+			writeFully(ch, header);
+			writeFully(ch, records);
+			writeFully(ch, strings.encode());
+			ch.force(true);
+		} finally {
+			raf.close();
+		}
+		try {
+			move(tmp, file);
+		} catch (FileSystemException e) {
+			if(!file.exists()) throw e;
+			move(tmp, new File(file.getPath() + ".g" + created));
+			return;
+		}
+		deleteGenerations(file);
+	}
+
+	/** Moves from over to, atomically where the file system supports it */
+	private static void move(File from, File to) throws IOException {
+		try { Files.move(from.toPath(), to.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE); }
+		catch (AtomicMoveNotSupportedException e) { Files.move(from.toPath(), to.toPath(), StandardCopyOption.REPLACE_EXISTING); }
+	}
+
+	/** @return The generation file of file with the latest creation time, or null if there is none */
+	private static File newestGeneration(File file) {
+		File newest = null;
+		for(File g : generations(file))
+			if(newest == null || generationMillis(g) > generationMillis(newest)) newest = g;
+		return(newest);
+	}
+
+	/** Deletes file's generation files; any still mapped (on Windows) are left for a later call */
+	private static void deleteGenerations(File file) {
+		for(File g : generations(file)) g.delete();
+	}
+
+	private static ArrayList<File> generations(File file) {
+		ArrayList<File> list = new ArrayList<File>();
+		File dir = file.getAbsoluteFile().getParentFile();
+		File [] files = (dir == null) ? null : dir.listFiles();
+		if(files == null) return(list);
+		String prefix = file.getName() + ".g";
+		for(File f : files)
+			if(f.getName().startsWith(prefix) && generationMillis(f) >= 0) list.add(f);
+		return(list);
+	}
+
+	/** @return The creation time in the name of a generation file, or -1 if it isn't one */
+	private static long generationMillis(File generation) {
+		String name = generation.getName();
+		String millis = name.substring(name.lastIndexOf(".g") + 2);
+		try { return(millis.isEmpty() ? -1 : Long.parseLong(millis)); }
+		catch (NumberFormatException e) { return(-1); }
+	}
+
+	/** @return The creation time in file's header, read without mapping it, or -1 if it can't be read */
+	private static long createdMillisOf(File file) {
+		try(RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+			if(raf.length() < HEADER_SIZE || raf.readInt() != MAGIC) return(-1);
+			raf.seek(8);
+			return(raf.readLong());
+		} catch (IOException e) {
+			return(-1);
+		}
+	}
+
+	public File getFile() { return file; }
+	public String getAgency() { return agency; }
+	public long getCreatedMillis() { return createdMillis; }
+	public int routeCount() { return routeCount; }
+	public int stopCount() { return stopCount; }
+
+	/** @return How long ago, in milliseconds, this snapshot was written */
+	public long getAgeMillis() {
+		return(System.currentTimeMillis() - createdMillis);
+	}
+
+	/** Decodes one route.
+	 * @param i Route number, between 0 and routeCount()-1
+	 */
+	public Route getRoute(int i) {
+		if(i < 0 || i >= routeCount) throw new IndexOutOfBoundsException("Route " + i + " of " + routeCount);
+		int p = routesPos + i * ROUTE_RECORD_SIZE;
+		return(new Route(string(buf.getInt(p)), string(buf.getInt(p + 4)), string(buf.getInt(p + 8)), buf.getInt(p + 20),
+				string(buf.getInt(p + 12)), string(buf.getInt(p + 16))));
+	}
+
+	/** @return Every route in the snapshot, in the order they were written */
+	public ArrayList<Route> getRoutes() {
+		ArrayList<Route> routes = new ArrayList<Route>(routeCount);
+		for(int i = 0; i < routeCount; i++) routes.add(getRoute(i));
+		return(routes);
+	}
+
+	/** Decodes the stops on one route.
+	 * @param route_id The Route ID to get stops for
+	 * @return The route's stops, or null if the snapshot has no such route
+	 */
+	public ArrayList<SimpleStop> getStopsByRoute(String route_id) {
+		for(int i = 0; i < routeCount; i++) {
+			int p = routesPos + i * ROUTE_RECORD_SIZE;
+			if(!stringEquals(buf.getInt(p), route_id)) continue;
+
+			int first = buf.getInt(p + 24), n = buf.getInt(p + 28);
+			ArrayList<SimpleStop> stops = new ArrayList<SimpleStop>(n);
+			for(int s = first; s < first + n; s++) stops.add(getStop(s));
+			return(stops);
+		}
+		return(null);
+	}
+
+	/** Decodes one stop record.
+	 * @param i Stop record number, between 0 and stopCount()-1
+	 */
+	public SimpleStop getStop(int i) {
+		if(i < 0 || i >= stopCount) throw new IndexOutOfBoundsException("Stop " + i + " of " + stopCount);
+		int p = stopsPos + i * STOP_RECORD_SIZE;
+		SimpleStop s = new SimpleStop();
+		s.lat = buf.getInt(p);
+		s.lon = buf.getInt(p + 4);
+		s.agency = string(buf.getInt(p + 8));
+		s.routeName = string(buf.getInt(p + 12));
+		s.intersection = string(buf.getInt(p + 16));
+		s.dirName = string(buf.getInt(p + 20));
+		s.headSign = string(buf.getInt(p + 24));
+		s.diruse = string(buf.getInt(p + 28));
+		s.direction = string(buf.getInt(p + 32));
+		s.table = string(buf.getInt(p + 36));
+		s.isRTstr = string(buf.getInt(p + 40));
+		s.stopcode = string(buf.getInt(p + 44));
+		return(s);
+	}
+
+	/** Copies every stop record into a StopTable */
+	public StopTable toStopTable() {
+		StopTable table = new StopTable(stopCount);
+		for(int i = 0; i < stopCount; i++) table.add(getStop(i));
+		return(table);
+	}
+
+	public String toString() {
+		return("{AgencySnapshot: agency=" + agency + ", routes=" + routeCount + ", stops=" + stopCount
+				+ ", ageMs=" + getAgeMillis() + "}");
+	}
+
+	/** Decodes string number ref from the string table (-1 is null) */
+	private String string(int ref) {
+		if(ref < 0) return(null);
+		int start = buf.getInt(stringOffsetsPos + ref * 4), end = buf.getInt(stringOffsetsPos + ref * 4 + 4);
+		byte [] bytes = new byte[end - start];
+		ByteBuffer dup = buf.duplicate();
+		dup.position(stringDataPos + start);
+		dup.get(bytes);
+		return(new String(bytes, UTF8));
+	}
+
+	/** Compares string number ref with s without decoding it (for ASCII s; otherwise decodes) */
+	private boolean stringEquals(int ref, String s) {
+		if(ref < 0 || s == null) return(ref < 0 && s == null);
+		int start = buf.getInt(stringOffsetsPos + ref * 4), end = buf.getInt(stringOffsetsPos + ref * 4 + 4);
+		if(end - start != s.length()) return(s.equals(string(ref)));
+		for(int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if(c >= 0x80) return(s.equals(string(ref)));
+			if(buf.get(stringDataPos + start + i) != (byte) c) return(false);
+		}
+		return(true);
+	}
+
+	private static void writeFully(FileChannel ch, ByteBuffer b) throws IOException {
+		while(b.hasRemaining()) ch.write(b);
+	}
+
+	/** Assigns numbers to distinct strings while writing */
+	private static class StringTable {
+		private final HashMap<String, Integer> refs = new HashMap<String, Integer>();
+		private final ArrayList<byte []> encoded = new ArrayList<byte []>();
+
+		int ref(String s) {
+			if(s == null) return(-1);
+			Integer ref = refs.get(s);
+			if(ref == null) {
+				ref = encoded.size();
+				refs.put(s, ref);
+				encoded.add(s.getBytes(UTF8));
+			}
+			return(ref);
+		}
+
+		int size() { return encoded.size(); }
+
+		ByteBuffer encode() {
+			int total = 0;
+			for(byte [] b : encoded) total += b.length;
+			ByteBuffer out = ByteBuffer.allocate((encoded.size() + 1) * 4 + total);
+			int offset = 0;
+			for(byte [] b : encoded) { out.putInt(offset); offset += b.length; }
+			out.putInt(offset);
+			for(byte [] b : encoded) out.put(b);
+			out.flip();
+			return(out);
+		}
+	}
+}
@@ -0,0 +1,181 @@
+package com.yulaev.nodegtfsclient;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/** This class runs a batch of keyed requests with bounded parallelism and a per-request timeout, and
+ * collects whatever results it can. Requests that fail or take longer than the timeout (measured from
+ * when the request actually starts running, not from when it was queued) are left out of the result,
+ * so one slow or broken request can't hold up or sink the whole batch. An optional batch timeout bounds
+ * the whole run: requests still running or queued when it passes are left out too.
+ *
+ * Requests run on an Executor supplied by the caller (by default TransitDataFetcher's default async
+ * executor); the batch doesn't start threads of its own, it only hands at most parallelism requests
+ * to the executor at a time.
+ *
+ * @author iyulaev
+ */
+public class BoundedBatch<K, V> {
+
+	private final Executor executor;
+	private final int parallelism;
+	private final long timeoutMs, batchTimeoutMs;
+	private final FetchListener listener;
+
+	//Requests to run, in the order results should be returned
+	private final LinkedHashMap<K, Callable<V>> requests = new LinkedHashMap<K, Callable<V>>();
+
+	/** @param parallelism Maximum number of requests to run at once
+	 * @param timeoutMs Maximum time, in milliseconds, any one request may run for
+	 */
+	public BoundedBatch(int parallelism, long timeoutMs) {
+		this(parallelism, timeoutMs, FetchListener.NO_OP);
+	}
+
+	/** @param parallelism Maximum number of requests to run at once
+	 * @param timeoutMs Maximum time, in milliseconds, any one request may run for
+	 * @param listener Listener told (through onError()) about requests that fail or time out
+	 */
+	public BoundedBatch(int parallelism, long timeoutMs, FetchListener listener) {
+		this(TransitDataFetcher.getDefaultAsyncExecutor(), parallelism, timeoutMs, 0, listener);
+	}
+
+	/** @param executor Executor to run the requests on
+	 * @param parallelism Maximum number of requests to run at once
+	 * @param timeoutMs Maximum time, in milliseconds, any one request may run for
+	 * @param batchTimeoutMs Maximum time, in milliseconds, run() may take, or 0 for no limit
+	 * @param listener Listener told (through onError()) about requests that fail or time out
+	 */
+	public BoundedBatch(Executor executor, int parallelism, long timeoutMs, long batchTimeoutMs, FetchListener listener) {
+		if(parallelism < 1) throw new IllegalArgumentException("parallelism must be at least 1");
+		this.executor = executor;
+		this.parallelism = parallelism;
+		this.timeoutMs = timeoutMs;
+		this.batchTimeoutMs = batchTimeoutMs;
+		this.listener = listener;
+	}
+
+	/** Adds a request to the batch */
+	public void add(K key, Callable<V> request) {
+		requests.put(key, request);
+	}
+
+	/** Runs every request in the batch and waits for them to finish or time out.
+	 * @return Map from key to result for every request that succeeded in time, in the order the
+	 * requests were added
+	 */
+	public Map<K, V> run() {
+		LinkedHashMap<K, V> ordered = new LinkedHashMap<K, V>();
+		if(requests.isEmpty()) return(ordered);
+
+		//A permit per running request; each request gives its permit back when it stops running
+		Semaphore permits = new Semaphore(parallelism);
+		ExecutorCompletionService<V> completions = new ExecutorCompletionService<V>(executor);
+		Iterator<Map.Entry<K, Callable<V>>> queued = requests.entrySet().iterator();
+		HashMap<Future<V>, TimedRequest> pending = new HashMap<Future<V>, TimedRequest>();
+		HashMap<K, V> results = new HashMap<K, V>();
+
+		long timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+		long batchDeadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(batchTimeoutMs);
+		try {
+			for(;;) {
+				long now = System.nanoTime(), wait = timeoutNanos;
+				if(batchTimeoutMs > 0) {
+					if(batchDeadline - now <= 0) break;
+					wait = Math.min(wait, batchDeadline - now);
+				}
+
+				//Give up on requests that have been running too long, and work out how long we can wait
+				Iterator<Map.Entry<Future<V>, TimedRequest>> it = pending.entrySet().iterator();
+				while(it.hasNext()) {
+					Map.Entry<Future<V>, TimedRequest> e = it.next();
+					long started = e.getValue().startedAt;
+					if(started == 0) continue;
+					long left = started + timeoutNanos - now;
+					if(left <= 0) {
+						e.getKey().cancel(true);
+						it.remove();
+						listener.onError("Request for " + e.getValue().key + " timed out after " + timeoutMs + " ms", null);
+					}
+					else wait = Math.min(wait, left);
+				}
+
+				//Hand the executor as many queued requests as there are free permits
+				while(queued.hasNext() && permits.tryAcquire()) {
+					Map.Entry<K, Callable<V>> e = queued.next();
+					TimedRequest r = new TimedRequest(e.getKey(), e.getValue(), permits);
+					try { pending.put(completions.submit(r), r); }
+					catch (RejectedExecutionException ex) {
+						permits.release();
+						listener.onError("Request for " + e.getKey() + " was rejected", ex);
+					}
+				}
+
+				if(pending.isEmpty()) {
+					if(!queued.hasNext()) break;
+					//Every permit is held by requests we gave up on that haven't stopped yet
+					if(permits.tryAcquire(wait, TimeUnit.NANOSECONDS)) permits.release();
+					continue;
+				}
+
+				Future<V> done = completions.poll(wait, TimeUnit.NANOSECONDS);
+				if(done == null) continue;
+				TimedRequest r = pending.remove(done);
+				if(r == null) continue; //already given up on
+
+				try { results.put(r.key, done.get()); }
+				catch (ExecutionException e) {
+					listener.onError("Request for " + r.key + " failed", (e.getCause() instanceof Exception) ? (Exception) e.getCause() : e);
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			//Anything left over ran out of batch time (or the caller was interrupted)
+			for(Map.Entry<Future<V>, TimedRequest> e : pending.entrySet()) {
+				e.getKey().cancel(true);
+				listener.onError("Request for " + e.getValue().key + " didn't finish within the batch timeout", null);
+			}
+			while(queued.hasNext())
+				listener.onError("Request for " + queued.next().getKey() + " didn't start within the batch timeout", null);
+		}
+
+		for(K key : requests.keySet()) if(results.containsKey(key)) ordered.put(key, results.get(key));
+		return(ordered);
+	}
+
+	/** Wraps a request to record when it started running, and to give back its permit when it stops */
+	private class TimedRequest implements Callable<V> {
+		final K key;
+		final Callable<V> request;
+		final Semaphore permits;
+		volatile long startedAt;
+
+		TimedRequest(K key, Callable<V> request, Semaphore permits) {
+			this.key = key;
+			this.request = request;
+			this.permits = permits;
+		}
+
+		public V call() throws Exception {
+			try {
+				//nanoTime() can legitimately be 0; nudge it so 0 can keep meaning "not started"
+				long now = System.nanoTime();
+				startedAt = (now == 0) ? 1 : now;
+				return(request.call());
+			} finally {
+				permits.release();
+			}
+		}
+	}
+}
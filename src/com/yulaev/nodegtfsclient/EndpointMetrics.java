@@ -0,0 +1,89 @@
+package com.yulaev.nodegtfsclient;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/** This class collects counters and latency histograms for one NodeGtfsUrlMaker query type. Time spent
+ * on a request is split into a fetch phase (until the server has answered with a status line and
+ * headers; a slow server shows up here) and a parse phase (reading and decoding the body; a slow
+ * client, or a large response, shows up here).
+ *
+ * @author iyulaev
+ */
+public class EndpointMetrics implements EndpointMetricsMBean {
+
+	private final String queryType;
+
+	private final AtomicLong requests = new AtomicLong();
+	private final AtomicLong errors = new AtomicLong();
+	private final AtomicLong cacheHits = new AtomicLong();
+	private final AtomicLong notModified = new AtomicLong();
+	private final AtomicLong bytes = new AtomicLong();
+	private final AtomicLong objects = new AtomicLong();
+	private final LatencyHistogram fetchLatency = new LatencyHistogram();
+	private final LatencyHistogram parseLatency = new LatencyHistogram();
+
+	public EndpointMetrics(String queryType) {
+		this.queryType = queryType;
+	}
+
+	/** Records a request to the server.
+	 * @param exchange Timings and byte count of the request, as filled in by HttpTransport
+	 * @param objectCount Number of objects decoded (or revalidated) from the response, or -1 if the request failed
+	 */
+	public void recordRequest(HttpTransport.Exchange exchange, int objectCount) {
+		requests.incrementAndGet();
+		bytes.addAndGet(exchange.getBytesReceived());
+		if(exchange.getResponseNanos() != 0) fetchLatency.record(exchange.getResponseNanos() - exchange.getStartNanos());
+		if(exchange.isNotModified()) { notModified.incrementAndGet(); return; }
+		if(exchange.getResponseNanos() != 0 && exchange.getEndNanos() != 0)
+			parseLatency.record(exchange.getEndNanos() - exchange.getResponseNanos());
+
+		if(objectCount < 0) errors.incrementAndGet();
+		else objects.addAndGet(objectCount);
+	}
+
+	/** Records a query answered from the cache */
+	public void recordCacheHit() {
+		cacheHits.incrementAndGet();
+	}
+
+	public LatencyHistogram getFetchLatency() { return fetchLatency; }
+	public LatencyHistogram getParseLatency() { return parseLatency; }
+
+	public String getQueryType() { return queryType; }
+	public long getRequestCount() { return requests.get(); }
+	public long getErrorCount() { return errors.get(); }
+	public long getCacheHitCount() { return cacheHits.get(); }
+	public long getNotModifiedCount() { return notModified.get(); }
+	public long getBytesReceived() { return bytes.get(); }
+	public long getObjectCount() { return objects.get(); }
+
+	public double getFetchMeanMs() { return fetchLatency.getMean() / 1e6; }
+	public double getFetchP50Ms() { return fetchLatency.getValueAtPercentile(50) / 1e6; }
+	public double getFetchP99Ms() { return fetchLatency.getValueAtPercentile(99) / 1e6; }
+	public double getFetchP999Ms() { return fetchLatency.getValueAtPercentile(99.9) / 1e6; }
+	public double getFetchMaxMs() { return fetchLatency.getMax() / 1e6; }
+
+	public double getParseMeanMs() { return parseLatency.getMean() / 1e6; }
+	public double getParseP50Ms() { return parseLatency.getValueAtPercentile(50) / 1e6; }
+	public double getParseP99Ms() { return parseLatency.getValueAtPercentile(99) / 1e6; }
+	public double getParseP999Ms() { return parseLatency.getValueAtPercentile(99.9) / 1e6; }
+	public double getParseMaxMs() { return parseLatency.getMax() / 1e6; }
+
+	public void reset() {
+		requests.set(0);
+		errors.set(0);
+		cacheHits.set(0);
+		notModified.set(0);
+		bytes.set(0);
+		objects.set(0);
+		fetchLatency.reset();
+		parseLatency.reset();
+	}
+
+	public String toString() {
+		return(String.format("{%s: requests=%d, errors=%d, cacheHits=%d, notModified=%d, bytes=%d, objects=%d, fetch p50/p99=%.2f/%.2f ms, parse p50/p99=%.2f/%.2f ms}",
+				queryType, getRequestCount(), getErrorCount(), getCacheHitCount(), getNotModifiedCount(), getBytesReceived(), getObjectCount(),
+				getFetchP50Ms(), getFetchP99Ms(), getParseP50Ms(), getParseP99Ms()));
+	}
+}
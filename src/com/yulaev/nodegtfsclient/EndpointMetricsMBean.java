@@ -0,0 +1,41 @@
+package com.yulaev.nodegtfsclient;
+
+/** JMX management interface of EndpointMetrics. Latencies are given in milliseconds.
+ *
+ * @author iyulaev
+ */
+public interface EndpointMetricsMBean {
+
+	/** @return Name of the NodeGtfsUrlMaker query type these metrics are for */
+	String getQueryType();
+
+	/** @return Number of HTTP requests made to the server */
+	long getRequestCount();
+	/** @return Number of requests that failed (in transport or while decoding) */
+	long getErrorCount();
+	/** @return Number of queries answered from the ResponseCache without a request */
+	long getCacheHitCount();
+	/** @return Number of conditional requests the server answered with 304 Not Modified */
+	long getNotModifiedCount();
+	/** @return Total response body bytes received */
+	long getBytesReceived();
+	/** @return Total number of objects (routes, stops, predictions) decoded */
+	long getObjectCount();
+
+	/** Fetch phase: from starting the request until the response status and headers are in */
+	double getFetchMeanMs();
+	double getFetchP50Ms();
+	double getFetchP99Ms();
+	double getFetchP999Ms();
+	double getFetchMaxMs();
+
+	/** Parse phase: reading and decoding the response body (these overlap when streaming) */
+	double getParseMeanMs();
+	double getParseP50Ms();
+	double getParseP99Ms();
+	double getParseP999Ms();
+	double getParseMaxMs();
+
+	/** Clears all counters and histograms */
+	void reset();
+}
@@ -0,0 +1,85 @@
+package com.yulaev.nodegtfsclient;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/** This class holds the JDK Flight Recorder events that node-gtfs-client emits for each request, so
+ * that its phases show up in recordings, per agency and endpoint:
+ * <pre>
+ *   UrlBuild   building the request URL (NodeGtfsUrlMaker)
+ *   Connect    opening the connection (or taking one from the keep-alive cache)
+ *   FirstByte  sending the request and waiting for the response status and headers
+ *   Decode     reading the body and turning it into objects
+ * </pre>
+ * Reading, tokenizing and binding the body are a single event because the decoders do all three in
+ * one pass (see JSONStreamDecoder): the body is read as the parser pulls tokens, and each token is
+ * bound to its object field straight away, so there is no point at which one phase ends and the next
+ * begins.
+ *
+ * When no recording is running (or these events are disabled) the events cost next to nothing.
+ *
+ * @author iyulaev
+ */
+public final class FetchEvents {
+
+	private FetchEvents() { }
+
+	/** Fields shared by every node-gtfs-client event */
+	@Category({"node-gtfs-client"})
+	@StackTrace(false)
+	abstract static class RequestEvent extends Event {
+		@Label("Endpoint")
+		@Description("NodeGtfsUrlMaker query type of the request")
+		String endpoint;
+
+		@Label("Agency")
+		String agency;
+
+		@Label("URL")
+		String url;
+
+		void describe(int queryType, String agency, String url) {
+			this.endpoint = NodeGtfsUrlMaker.getQueryName(queryType);
+			this.agency = agency;
+			this.url = url;
+		}
+
+		void describe(HttpTransport.Exchange exchange, String url) {
+			this.endpoint = exchange.getEndpoint();
+			this.agency = exchange.getAgency();
+			this.url = url;
+		}
+	}
+
+	@Name("com.yulaev.nodegtfsclient.UrlBuild")
+	@Label("node-gtfs URL Build")
+	static final class UrlBuild extends RequestEvent { }
+
+	@Name("com.yulaev.nodegtfsclient.Connect")
+	@Label("node-gtfs Connect")
+	static final class Connect extends RequestEvent { }
+
+	@Name("com.yulaev.nodegtfsclient.FirstByte")
+	@Label("node-gtfs Time To First Byte")
+	static final class FirstByte extends RequestEvent {
+		@Label("Status")
+		int status;
+	}
+
+	@Name("com.yulaev.nodegtfsclient.Decode")
+	@Label("node-gtfs Decode")
+	@Description("Reading, tokenizing and binding a response body")
+	static final class Decode extends RequestEvent {
+		@Label("Bytes")
+		@DataAmount
+		long bytes;
+
+		@Label("Objects")
+		int objects;
+	}
+}
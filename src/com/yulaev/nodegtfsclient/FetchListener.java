@@ -0,0 +1,59 @@
+package com.yulaev.nodegtfsclient;
+
+/** A FetchListener receives diagnostic events from a TransitDataFetcher: every decoded response (with
+ * its object count and timings), failed requests, and elements of otherwise good responses that could
+ * not be decoded. Every method does nothing by default, so implementations only override what they
+ * are interested in; a fetcher with no listener set uses NO_OP and pays nothing for diagnostics.
+ *
+ * Listeners are called on whichever thread made the request, and must be thread-safe.
+ *
+ * @author iyulaev
+ */
+public interface FetchListener {
+
+	/** Listener that ignores every event */
+	FetchListener NO_OP = new FetchListener() { };
+
+	/** Listener that prints every event to the console, the way node-gtfs-client used to */
+	FetchListener CONSOLE = new FetchListener() {
+		public void onResponse(int queryType, String url, int objectCount, HttpTransport.Exchange exchange) {
+			System.out.println("Found " + objectCount + " JSON Objects in the Array from " + url);
+		}
+		public void onRequestFailed(int queryType, String url, Exception e) {
+			System.err.println(url + ": " + e);
+		}
+		public void onParseError(String message) {
+			System.err.println(message);
+		}
+		public void onError(String message, Exception e) {
+			System.err.println(message + (e == null ? "" : ": " + e));
+		}
+	};
+
+	/** Called after a response from the server has been decoded.
+	 * @param queryType The NodeGtfsUrlMaker.QUERY_* type of the request
+	 * @param url The URL fetched
+	 * @param objectCount Number of objects (routes, stops, predictions) decoded from the response
+	 * @param exchange Timings and byte count of the request
+	 */
+	default void onResponse(int queryType, String url, int objectCount, HttpTransport.Exchange exchange) { }
+
+	/** Called when a request fails, in transport or because the response couldn't be decoded.
+	 * @param queryType The NodeGtfsUrlMaker.QUERY_* type of the request
+	 * @param url The URL that was being fetched
+	 * @param e What went wrong
+	 */
+	default void onRequestFailed(int queryType, String url, Exception e) { }
+
+	/** Called when part of a response is skipped because it couldn't be decoded (the rest of the
+	 * response is still used).
+	 * @param message Description of what was skipped
+	 */
+	default void onParseError(String message) { }
+
+	/** Called for failures outside of any one request (e.g. reading or writing an AgencySnapshot).
+	 * @param message Description of what failed
+	 * @param e The exception, or null
+	 */
+	default void onError(String message, Exception e) { }
+}
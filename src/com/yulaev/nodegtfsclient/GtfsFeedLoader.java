@@ -0,0 +1,306 @@
+package com.yulaev.nodegtfsclient;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/** This class reads a GTFS static feed (the zip file an agency publishes, or a directory it has been
+ * unzipped into) straight from disk, and turns it into the same Route and SimpleStop objects that
+ * TransitDataFetcher gets from node-gtfs. Bulk data such as every stop of an agency can thus be loaded
+ * locally in one pass, instead of one REST request per route; writeSnapshot() saves the result in the
+ * form TransitDataFetcher.warmStart() loads.
+ *
+ * The feed's CSV files are read one row at a time, so even stop_times.txt (which can run to millions of
+ * rows) is never held in memory as a whole. Quoting follows RFC 4180: a quoted field may hold commas,
+ * line breaks and doubled quotes (""), which stand for a single quote. A zip file is opened once for
+ * each load and closed when it is done.
+ *
+ * @author iyulaev
+ */
+public class GtfsFeedLoader {
+
+	private final File feed;
+	private final String agency;
+	private final FetchListener listener;
+
+	/** @param feed A GTFS zip file, or a directory holding the unzipped feed
+	 * @param agency The agency key to give loaded stops (as node-gtfs would in agency_key)
+	 */
+	public GtfsFeedLoader(File feed, String agency) {
+		this(feed, agency, FetchListener.NO_OP);
+	}
+
+	/** @param feed A GTFS zip file, or a directory holding the unzipped feed
+	 * @param agency The agency key to give loaded stops (as node-gtfs would in agency_key)
+	 * @param listener Listener told (through onParseError()) about values of the feed that can't be read
+	 */
+	public GtfsFeedLoader(File feed, String agency, FetchListener listener) {
+		this.feed = feed;
+		this.agency = agency;
+		this.listener = listener;
+	}
+
+	public String getAgency() { return agency; }
+
+	/** Loads routes.txt.
+	 * @return Every route in the feed, in file order
+	 */
+	public ArrayList<Route> loadRoutes() throws IOException {
+		try(ZipFile zip = openZip()) {
+			return(loadRoutes(zip));
+		}
+	}
+
+	private ArrayList<Route> loadRoutes(ZipFile zip) throws IOException {
+		ArrayList<Route> routes = new ArrayList<Route>();
+		FeedFile f = open(zip, "routes.txt");
+		try {
+			int id = f.column("route_id", true), type = f.column("route_type", false), agencyId = f.column("agency_id", false);
+			int sName = f.column("route_short_name", false), lName = f.column("route_long_name", false), url = f.column("route_url", false);
+
+			String [] row;
+			while((row = f.nextRow()) != null) {
+				String shortName = f.value(row, sName), longName = f.value(row, lName);
+				//Same fallbacks as Route(JSONObject): if only one of the names is given, use it for both
+				if(shortName == null) shortName = longName;
+				if(longName == null) longName = shortName;
+
+				String typeStr = f.value(row, type);
+				int routeType = 0;
+				if(typeStr != null) {
+					try { routeType = Integer.parseInt(typeStr); }
+					catch (NumberFormatException e) { listener.onParseError("Bad route_type \"" + typeStr + "\" in routes.txt"); }
+				}
+
+				routes.add(new Route(f.value(row, id), shortName, longName, routeType, f.value(row, url), f.value(row, agencyId)));
+			}
+		} finally {
+			f.close();
+		}
+		return(routes);
+	}
+
+	/** Loads stops.txt.
+	 * @return Map from stop_id to stop, for every stop in the feed, in file order
+	 */
+	public LinkedHashMap<String, SimpleStop> loadStops() throws IOException {
+		try(ZipFile zip = openZip()) {
+			return(loadStops(zip));
+		}
+	}
+
+	private LinkedHashMap<String, SimpleStop> loadStops(ZipFile zip) throws IOException {
+		LinkedHashMap<String, SimpleStop> stops = new LinkedHashMap<String, SimpleStop>();
+		FeedFile f = open(zip, "stops.txt");
+		try {
+			int id = f.column("stop_id", true), name = f.column("stop_name", false), code = f.column("stop_code", false);
+			int lat = f.column("stop_lat", false), lon = f.column("stop_lon", false);
+
+			String [] row;
+			while((row = f.nextRow()) != null) {
+				SimpleStop stop = new SimpleStop();
+				stop.agency = agency;
+				stop.intersection = f.value(row, name);
+				stop.stopcode = f.value(row, code);
+				try {
+					String latStr = f.value(row, lat), lonStr = f.value(row, lon);
+					if(latStr != null) stop.lat = JSONPullParser.parseMicroDegrees(latStr);
+					if(lonStr != null) stop.lon = JSONPullParser.parseMicroDegrees(lonStr);
+				} catch (NumberFormatException e) {
+					listener.onParseError("Bad location for stop " + f.value(row, id) + " in stops.txt");
+				}
+				stops.put(f.value(row, id), stop);
+			}
+		} finally {
+			f.close();
+		}
+		return(stops);
+	}
+
+	/** Works out which stops each route serves, from trips.txt and stop_times.txt: a stop belongs to a
+	 * route if any trip of the route calls at it.
+	 * @param stops Stops by stop_id, as returned by loadStops()
+	 * @return Map from route_id to the distinct stops of that route, in the order they are first visited.
+	 * The SimpleStop objects are shared with stops and between routes.
+	 */
+	public LinkedHashMap<String, List<SimpleStop>> loadStopsByRoute(Map<String, SimpleStop> stops) throws IOException {
+		try(ZipFile zip = openZip()) {
+			return(loadStopsByRoute(zip, stops));
+		}
+	}
+
+	private LinkedHashMap<String, List<SimpleStop>> loadStopsByRoute(ZipFile zip, Map<String, SimpleStop> stops) throws IOException {
+		HashMap<String, String> routeOfTrip = new HashMap<String, String>();
+		FeedFile f = open(zip, "trips.txt");
+		try {
+			int trip = f.column("trip_id", true), route = f.column("route_id", true);
+			String [] row;
+			while((row = f.nextRow()) != null) routeOfTrip.put(f.value(row, trip), f.value(row, route));
+		} finally {
+			f.close();
+		}
+
+		LinkedHashMap<String, LinkedHashSet<String>> stopIdsOfRoute = new LinkedHashMap<String, LinkedHashSet<String>>();
+		f = open(zip, "stop_times.txt");
+		try {
+			int trip = f.column("trip_id", true), stop = f.column("stop_id", true);
+			String [] row;
+			while((row = f.nextRow()) != null) {
+				String route = routeOfTrip.get(f.value(row, trip));
+				if(route == null) continue;
+				LinkedHashSet<String> ids = stopIdsOfRoute.get(route);
+				if(ids == null) stopIdsOfRoute.put(route, ids = new LinkedHashSet<String>());
+				ids.add(f.value(row, stop));
+			}
+		} finally {
+			f.close();
+		}
+
+		LinkedHashMap<String, List<SimpleStop>> stopsByRoute = new LinkedHashMap<String, List<SimpleStop>>();
+		for(Map.Entry<String, LinkedHashSet<String>> e : stopIdsOfRoute.entrySet()) {
+			ArrayList<SimpleStop> routeStops = new ArrayList<SimpleStop>(e.getValue().size());
+			for(String id : e.getValue()) {
+				SimpleStop s = stops.get(id);
+				if(s != null) routeStops.add(s);
+			}
+			stopsByRoute.put(e.getKey(), routeStops);
+		}
+		return(stopsByRoute);
+	}
+
+	/** Loads the whole feed and writes it out as an AgencySnapshot, which TransitDataFetcher.warmStart()
+	 * can then serve from without contacting the node-gtfs server.
+	 * @param file The snapshot file to write
+	 */
+	public void writeSnapshot(File file) throws IOException {
+		try(ZipFile zip = openZip()) {
+			AgencySnapshot.write(file, agency, loadRoutes(zip), loadStopsByRoute(zip, loadStops(zip)));
+		}
+	}
+
+	/** @return The feed's zip file, opened, or null if the feed is a directory */
+	private ZipFile openZip() throws IOException {
+		return(feed.isDirectory() ? null : new ZipFile(feed));
+	}
+
+	/** Opens one file of the feed for reading
+	 * @param zip The feed's zip file, or null if the feed is a directory
+	 */
+	private FeedFile open(ZipFile zip, String name) throws IOException {
+		if(zip == null) return(new FeedFile(name, new FileInputStream(new File(feed, name))));
+
+		ZipEntry entry = zip.getEntry(name);
+		if(entry == null) {
+			//Some agencies zip up the directory rather than its contents
+			for(Enumeration<? extends ZipEntry> en = zip.entries(); en.hasMoreElements() && entry == null; ) {
+				ZipEntry e = en.nextElement();
+				if(e.getName().endsWith("/" + name)) entry = e;
+			}
+		}
+		if(entry == null) throw new FileNotFoundException(name + " not found in " + feed);
+		return(new FeedFile(name, zip.getInputStream(entry)));
+	}
+
+	/** One CSV file of the feed, read a row at a time */
+	private static class FeedFile implements Closeable {
+		private final String name;
+		private final BufferedReader reader;
+		private final HashMap<String, Integer> columns = new HashMap<String, Integer>();
+		//Reused by nextRow()
+		private final ArrayList<String> fields = new ArrayList<String>();
+		private final StringBuilder field = new StringBuilder();
+
+		FeedFile(String name, InputStream in) throws IOException {
+			this.name = name;
+			this.reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8), 64 * 1024);
+
+			boolean ok = false;
+			try {
+				String [] header = nextRow();
+				if(header == null) throw new IOException(name + " is empty");
+				for(int i = 0; i < header.length; i++) {
+					String col = header[i].trim();
+					if(i == 0 && col.length() > 0 && col.charAt(0) == '\uFEFF') col = col.substring(1).trim(); //byte order mark
+					columns.put(col, i);
+				}
+				ok = true;
+			} finally {
+				if(!ok) close();
+			}
+		}
+
+		/** @return The index of column name, or -1 if the file doesn't have it
+		 * @throws IOException if the column is required but missing
+		 */
+		int column(String name, boolean required) throws IOException {
+			Integer i = columns.get(name);
+			if(i == null && required) throw new IOException(this.name + " has no " + name + " column");
+			return(i == null ? -1 : i);
+		}
+
+		/** @return The value of column col in row, or null if it is missing or empty */
+		String value(String [] row, int col) {
+			if(col < 0 || col >= row.length) return(null);
+			String v = row[col];
+			return(v.length() == 0 ? null : v);
+		}
+
+		/** @return The fields of the next row of the file, or null at the end. Unquoted fields are trimmed;
+		 * quoted ones are kept as they are, less the quotes.
+		 * @throws IOException if the file ends inside a quoted field
+		 */
+		String [] nextRow() throws IOException {
+			//Skip blank lines, and the \n of a CRLF line ending
+			int c;
+			do { c = reader.read(); } while(c == '\r' || c == '\n');
+			if(c < 0) return(null);
+
+			fields.clear();
+			field.setLength(0);
+			boolean inQuotes = false, quoted = false;
+			for(;;) {
+				if(inQuotes) {
+					if(c < 0) throw new IOException(name + " ends inside a quoted field");
+					if(c == '"') {
+						c = reader.read();
+						//A doubled quote stands for one quote; anything else follows the closing quote
+						if(c != '"') {
+							inQuotes = false;
+							continue;
+						}
+					}
+					field.append((char) c);
+				}
+				else if(c == '"') inQuotes = quoted = true;
+				else if(c == ',' || c == '\r' || c == '\n' || c < 0) {
+					fields.add(quoted ? field.toString() : field.toString().trim());
+					if(c != ',') break;
+					field.setLength(0);
+					quoted = false;
+				}
+				else field.append((char) c);
+				c = reader.read();
+			}
+			return(fields.toArray(new String[fields.size()]));
+		}
+
+		public void close() throws IOException {
+			reader.close();
+		}
+	}
+}
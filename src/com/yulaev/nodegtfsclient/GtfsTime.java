@@ -0,0 +1,81 @@
+package com.yulaev.nodegtfsclient;
+
+import java.util.TimeZone;
+
+/** This class decodes GTFS "HH:MM:SS" times, as returned by the node-gtfs /api/times/ endpoint, without
+ * creating any objects. GTFS times are measured from the start of the service day and may go past
+ * 24:00:00 for trips that run after midnight (e.g. "25:10:00" is 1:10 AM the next calendar day, but
+ * still part of the previous service day), so they are decoded into plain seconds-since-service-day
+ * ints rather than into a time of day.
+ *
+ * @author iyulaev
+ */
+public final class GtfsTime {
+
+	public static final int SECONDS_PER_DAY = 24 * 60 * 60;
+
+	//Returned by parseSeconds() for text that isn't a valid GTFS time
+	public static final int INVALID = Integer.MIN_VALUE;
+
+	private GtfsTime() { }
+
+	/** Parses a GTFS time ("H:MM:SS" or "HH:MM:SS", hours may exceed 23) into seconds since the start of
+	 * the service day. Whitespace anywhere in the text is ignored.
+	 * @param text The time text
+	 * @return Seconds since the start of the service day, or INVALID if text isn't a valid time
+	 */
+	public static int parseSeconds(CharSequence text) {
+		return(parseSeconds(text, 0, text.length()));
+	}
+
+	/** Same as parseSeconds(CharSequence), but only looks at text[start, end). */
+	public static int parseSeconds(CharSequence text, int start, int end) {
+		int seconds = 0;
+		int field = 0, value = 0, digits = 0;
+
+		for(int i = start; i < end; i++) {
+			char c = text.charAt(i);
+			if(c >= '0' && c <= '9') {
+				value = value * 10 + (c - '0');
+				if(++digits > 4) return(INVALID);
+			}
+			else if(c == ':') {
+				if(digits == 0 || field == 2 || (field > 0 && value > 59)) return(INVALID);
+				seconds = seconds * 60 + value;
+				field++;
+				value = 0;
+				digits = 0;
+			}
+			else if(c > ' ') return(INVALID);
+		}
+
+		if(field != 2 || digits == 0 || value > 59) return(INVALID);
+		return(seconds * 60 + value);
+	}
+
+	/** Returns how many seconds from now a GTFS time is, taking service-day roll-over into account. The
+	 * time could belong to yesterday's, today's or tomorrow's service day (e.g. "25:10:00" seen at 1 AM
+	 * is yesterday's service day and ten minutes away, and "00:10:00" seen at 11:50 PM is tomorrow's
+	 * and twenty minutes away); whichever interpretation lies closest to now is used.
+	 * @param serviceSeconds The time, in seconds since the start of its service day
+	 * @param nowSeconds The current time, in seconds since local midnight
+	 * @return Seconds from now until serviceSeconds (negative if it is in the past)
+	 */
+	public static int secondsUntil(int serviceSeconds, int nowSeconds) {
+		int best = serviceSeconds - nowSeconds;
+		int yesterday = best - SECONDS_PER_DAY;
+		int tomorrow = best + SECONDS_PER_DAY;
+		if(Math.abs(yesterday) < Math.abs(best)) best = yesterday;
+		if(Math.abs(tomorrow) < Math.abs(best)) best = tomorrow;
+		return(best);
+	}
+
+	/** Returns the number of seconds since local midnight in timeZone at the instant millis.
+	 * @param millis Milliseconds since the epoch
+	 * @param timeZone The time zone the node-gtfs agency's times are in
+	 */
+	public static int secondsSinceMidnight(long millis, TimeZone timeZone) {
+		long local = millis + timeZone.getOffset(millis);
+		return((int) Math.floorMod(Math.floorDiv(local, 1000L), (long) SECONDS_PER_DAY));
+	}
+}
@@ -0,0 +1,392 @@
+package com.yulaev.nodegtfsclient;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import org.json.JSONException;
+
+/** This class implements the HTTP transport that TransitDataFetcher uses to talk to a node-gtfs server.
+ * Connections are made with HttpURLConnection, which keeps idle connections alive in the JVM-wide
+ * keep-alive cache as long as every response body is read to the end and closed; this class makes sure
+ * that always happens, so that consecutive requests to the same server re-use a socket instead of paying
+ * for a new TCP handshake each time.
+ *
+ * On top of that, the number of requests that can be in flight to any one host is capped (callers
+ * above the cap wait for a free slot, up to the connect timeout), and connect/read timeouts are
+ * applied to every request.
+ *
+ * A request holds its slot until the handler returns. This is deliberate: handlers decode the body as
+ * it streams in, so the connection is busy, and can't go back into the keep-alive cache, until the
+ * handler has read it. The cap therefore also bounds how many responses are being decoded at once, and
+ * a slow handler (say a large stop list decoded on a busy thread) keeps its slot for as long as it runs.
+ * Callers that would rather not tie up a connection that way can fetch with STRING_HANDLER and decode
+ * the String afterwards.
+ *
+ * Responses may be compressed: every request accepts gzip and deflate content encodings, and compressed
+ * bodies are inflated as they stream in, on their way to the handler.
+ *
+ * Requests can be made conditional by giving their Exchange the validators (ETag, Last-Modified) of a
+ * response the caller already has; if the server answers 304 Not Modified, the handler isn't called.
+ *
+ * Note that the size of the keep-alive cache itself is controlled by the JVM-wide "http.maxConnections"
+ * system property (5 idle connections per host by default), which the JDK reads only once. This class
+ * leaves it alone; applications that allow more than that many connections per host and want all of
+ * them kept alive can call configureKeepAliveCache() at startup.
+ *
+ * @author iyulaev
+ */
+public class HttpTransport {
+
+	public static final int DEFAULT_CONNECT_TIMEOUT_MS = 5000;
+	public static final int DEFAULT_READ_TIMEOUT_MS = 15000;
+	public static final int DEFAULT_MAX_CONNECTIONS_PER_HOST = 8;
+
+	//Upper bound on how much of an unread response body we'll drain to keep a connection re-usable
+	private static final int MAX_DRAIN_BYTES = 64 * 1024;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	//Transport shared by all TransitDataFetchers that weren't given one explicitly
+	private static HttpTransport defaultTransport;
+
+	private final int connectTimeoutMs;
+	private final int readTimeoutMs;
+	private final int maxConnectionsPerHost;
+
+	//Map from "host:port" to the permits limiting concurrent requests to that host
+	private final ConcurrentHashMap<String, Semaphore> hostPermits;
+
+	/** A ResponseHandler consumes the body of a successful HTTP response and turns it into some
+	 * result object.
+	 * @param <T> The type of object produced from the response body
+	 */
+	public interface ResponseHandler<T> {
+		/** Consume the response body.
+		 * @param body UTF-8 Reader over the response body. Does not need to be closed by the handler.
+		 * @return The object represented by the response body
+		 */
+		T handle(Reader body) throws IOException, JSONException;
+	}
+
+	/** An Exchange records what happened during one fetch(): when it started, when the response status
+	 * and headers arrived, when the handler finished with the body, and how many body bytes were read
+	 * off the wire, i.e. before decompression (kept up to date as the body is read). Times are
+	 * System.nanoTime() values, 0 meaning "didn't get that far". It also carries the validators to
+	 * make the request conditional with, if any, and those the server sent back.
+	 */
+	public static class Exchange {
+		final String endpoint, agency;
+		long startNanos, responseNanos, endNanos;
+		long bytesReceived;
+
+		//Validators sent with the request (If-None-Match, If-Modified-Since), and those of the response
+		String ifNoneMatch, ifModifiedSince;
+		String etag, lastModified;
+		boolean notModified;
+
+		public Exchange() {
+			this(null, null);
+		}
+
+		/** @param endpoint Name of the kind of request, for JFR events (see FetchEvents)
+		 * @param agency Agency the request is about, for JFR events, or null
+		 */
+		public Exchange(String endpoint, String agency) {
+			this.endpoint = endpoint;
+			this.agency = agency;
+		}
+
+		public String getEndpoint() { return endpoint; }
+		public String getAgency() { return agency; }
+		public long getStartNanos() { return startNanos; }
+		public long getResponseNanos() { return responseNanos; }
+		public long getEndNanos() { return endNanos; }
+		public long getBytesReceived() { return bytesReceived; }
+
+		/** Makes the request conditional on the server's copy having changed since a response the caller
+		 * already has.
+		 * @param etag ETag of that response, or null
+		 * @param lastModified Last-Modified date of that response, or null
+		 */
+		public void setValidators(String etag, String lastModified) {
+			this.ifNoneMatch = etag;
+			this.ifModifiedSince = lastModified;
+		}
+
+		/** @return ETag header of the response, or null */
+		public String getETag() { return etag; }
+		/** @return Last-Modified header of the response, or null */
+		public String getLastModified() { return lastModified; }
+		/** @return Whether the server answered a conditional request with 304 Not Modified */
+		public boolean isNotModified() { return notModified; }
+	}
+
+	/** Thrown by fetch() when the server answers with a status other than 2xx (or a 304 to a conditional 
+	 * request). The response body is never handed to the handler in that case.
+	 */
+	public static class HttpStatusException extends IOException {
+		private static final long serialVersionUID = 1L;
+		private final int status;
+
+		public HttpStatusException(int status, String urlString) {
+			super("HTTP " + status + " from " + urlString);
+			this.status = status;
+		}
+
+		public int getStatus() { return status; }
+	}
+
+	/** Thrown by fetch() when no connection to the host became free (see getMaxConnectionsPerHost()) 
+	 * within the connect timeout. Nothing was sent to the server, so this says nothing about its health.
+	 */
+	public static class ConnectionPoolTimeoutException extends IOException {
+		private static final long serialVersionUID = 1L;
+
+		public ConnectionPoolTimeoutException(String host) {
+			super("Timed out waiting for a free connection to " + host);
+		}
+	}
+
+	/** Handler that simply returns the entire response body as a String */
+	public static final ResponseHandler<String> STRING_HANDLER = new ResponseHandler<String>() {
+		public String handle(Reader body) throws IOException {
+			StringBuilder sb = new StringBuilder();
+			char [] buf = new char[4096];
+			int n;
+			while((n = body.read(buf)) != -1) sb.append(buf, 0, n);
+			return(sb.toString());
+		}
+	};
+
+	/** Creates an HttpTransport with the default timeouts and per-host connection limit */
+	public HttpTransport() {
+		this(DEFAULT_CONNECT_TIMEOUT_MS, DEFAULT_READ_TIMEOUT_MS, DEFAULT_MAX_CONNECTIONS_PER_HOST);
+	}
+
+	/** Creates an HttpTransport.
+	 * @param connectTimeoutMs Timeout, in milliseconds, for establishing a connection (and for waiting on
+	 * a free per-host connection slot)
+	 * @param readTimeoutMs Timeout, in milliseconds, for any single read from the server
+	 * @param maxConnectionsPerHost Maximum number of requests that may be in flight to any one host,
+	 * counting each until its handler has finished with the body
+	 */
+	public HttpTransport(int connectTimeoutMs, int readTimeoutMs, int maxConnectionsPerHost) {
+		if(maxConnectionsPerHost < 1) throw new IllegalArgumentException("maxConnectionsPerHost must be at least 1");
+		this.connectTimeoutMs = connectTimeoutMs;
+		this.readTimeoutMs = readTimeoutMs;
+		this.maxConnectionsPerHost = maxConnectionsPerHost;
+		this.hostPermits = new ConcurrentHashMap<String, Semaphore>();
+	}
+
+	/** Sets the JVM-wide "http.maxConnections" system property, the number of idle connections per host
+	 * that HttpURLConnection keeps alive, unless it has already been set. This affects every user of
+	 * HttpURLConnection in the JVM, not only HttpTransport, and only takes effect if called before the
+	 * first HTTP connection of the JVM is made.
+	 * @param maxConnections Idle connections to keep per host; normally the largest maxConnectionsPerHost
+	 * of the application's HttpTransports
+	 * @return True if the property was set, false if it already had a value
+	 */
+	public static synchronized boolean configureKeepAliveCache(int maxConnections) {
+		if(maxConnections < 1) throw new IllegalArgumentException("maxConnections must be at least 1");
+		if(System.getProperty("http.maxConnections") != null) return(false);
+		System.setProperty("http.maxConnections", Integer.toString(maxConnections));
+		return(true);
+	}
+
+	/** @return The HttpTransport shared by all TransitDataFetchers that weren't given their own */
+	public static synchronized HttpTransport getDefault() {
+		if(defaultTransport == null) defaultTransport = new HttpTransport();
+		return(defaultTransport);
+	}
+
+	public int getConnectTimeoutMs() { return connectTimeoutMs; }
+	public int getReadTimeoutMs() { return readTimeoutMs; }
+	public int getMaxConnectionsPerHost() { return maxConnectionsPerHost; }
+
+	/** Performs a GET request against urlString and hands the response body to handler.
+	 *
+	 * @param urlString The URL to fetch
+	 * @param handler The ResponseHandler that will consume the response body
+	 * @return Whatever handler returned
+	 * @throws IOException if the request could not be made or timed out, or HttpStatusException if it 
+	 * returned a non-2xx status
+	 * @throws JSONException if handler failed to parse the response body
+	 */
+	public <T> T fetch(String urlString, ResponseHandler<T> handler) throws IOException, JSONException {
+		return(fetch(urlString, handler, new Exchange()));
+	}
+
+	/** Same as fetch(String, ResponseHandler), but records timings, the number of bytes received and the
+	 * response's validators in exchange (which are filled in as far as the request got, even if it fails).
+	 * If exchange has validators set the request is conditional, and a 304 Not Modified response returns
+	 * null without calling handler (exchange.isNotModified() tells this apart from a handler returning null).
+	 */
+	public <T> T fetch(String urlString, ResponseHandler<T> handler, Exchange exchange) throws IOException, JSONException {
+		//The exchange may be reused to retry a failed attempt, so clear everything the last attempt recorded
+		exchange.startNanos = exchange.responseNanos = exchange.endNanos = 0;
+		exchange.bytesReceived = 0;
+		exchange.etag = exchange.lastModified = null;
+		exchange.notModified = false;
+		URL url = new URL(urlString);
+		Semaphore permits = permitsFor(url);
+
+		try {
+			if(!permits.tryAcquire(connectTimeoutMs, TimeUnit.MILLISECONDS))
+				throw new ConnectionPoolTimeoutException(url.getHost());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted waiting for a connection to " + url.getHost());
+		}
+
+		//Timings start once we have a connection, so they measure the server rather than our own queue
+		exchange.startNanos = System.nanoTime();
+		try {
+			HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+			conn.setConnectTimeout(connectTimeoutMs);
+			conn.setReadTimeout(readTimeoutMs);
+			conn.setUseCaches(false);
+			conn.setRequestProperty("Accept", "application/json");
+			conn.setRequestProperty("Accept-Encoding", "gzip, deflate");
+			if(exchange.ifNoneMatch != null) conn.setRequestProperty("If-None-Match", exchange.ifNoneMatch);
+			if(exchange.ifModifiedSince != null) conn.setRequestProperty("If-Modified-Since", exchange.ifModifiedSince);
+
+			FetchEvents.Connect connect = new FetchEvents.Connect();
+			connect.begin();
+			conn.connect();
+			connect.end();
+			if(connect.shouldCommit()) { connect.describe(exchange, urlString); connect.commit(); }
+
+			FetchEvents.FirstByte firstByte = new FetchEvents.FirstByte();
+			firstByte.begin();
+			int status = conn.getResponseCode();
+			exchange.responseNanos = System.nanoTime();
+			firstByte.end();
+			if(firstByte.shouldCommit()) { firstByte.describe(exchange, urlString); firstByte.status = status; firstByte.commit(); }
+			exchange.etag = conn.getHeaderField("ETag");
+			exchange.lastModified = conn.getHeaderField("Last-Modified");
+			if(status == HttpURLConnection.HTTP_NOT_MODIFIED && (exchange.ifNoneMatch != null || exchange.ifModifiedSince != null)) {
+				exchange.notModified = true;
+				exchange.endNanos = System.nanoTime();
+				drainAndClose(conn.getInputStream());
+				return(null);
+			}
+			if(status < 200 || status >= 300) {
+				//Read the error body too, otherwise the connection can't go back into the keep-alive cache
+				drainAndClose(conn.getErrorStream());
+				throw new HttpStatusException(status, urlString);
+			}
+
+			CountingInputStream is = new CountingInputStream(conn.getInputStream(), exchange);
+			InputStream body = null;
+			try {
+				body = decoded(is, conn.getContentEncoding());
+				return(handler.handle(new BufferedReader(new InputStreamReader(body, UTF8))));
+			} finally {
+				exchange.endNanos = System.nanoTime();
+				//Drain what's left of the raw body (e.g. a gzip trailer), then free the Inflater, if any
+				drainAndClose(is);
+				if(body != null && body != is) try { body.close(); } catch (IOException e) { }
+			}
+		} finally {
+			permits.release();
+		}
+	}
+
+	/** Wraps a response body in a stream that undoes its Content-Encoding.
+	 * @param encoding The Content-Encoding header, or null
+	 * @throws IOException if the encoding isn't one we asked for
+	 */
+	private static InputStream decoded(InputStream raw, String encoding) throws IOException {
+		if(encoding == null) return(raw);
+		encoding = encoding.trim().toLowerCase(Locale.ROOT);
+		if(encoding.isEmpty() || encoding.equals("identity")) return(raw);
+		if(encoding.equals("gzip") || encoding.equals("x-gzip")) return(new GZIPInputStream(raw, 8192));
+		if(encoding.equals("deflate")) {
+			//"deflate" is meant to be zlib-wrapped, but some servers send a bare deflate stream; a zlib header
+			//is a 16-bit big-endian multiple of 31 with compression method 8
+			BufferedInputStream in = new BufferedInputStream(raw, 8192);
+			in.mark(2);
+			int b0 = in.read(), b1 = in.read();
+			in.reset();
+			boolean zlib = b0 >= 0 && b1 >= 0 && (b0 & 0x0F) == 8 && ((b0 << 8) | b1) % 31 == 0;
+			return(new InflaterInputStream(in, new Inflater(!zlib), 8192) {
+				//InflaterInputStream doesn't free an Inflater it didn't create itself
+				public void close() throws IOException {
+					try { super.close(); } finally { inf.end(); }
+				}
+			});
+		}
+		throw new IOException("Unsupported Content-Encoding " + encoding);
+	}
+
+	/** Returns the Semaphore limiting concurrent requests to the host that url points at */
+	private Semaphore permitsFor(URL url) {
+		String hostKey = url.getHost() + ":" + (url.getPort() == -1 ? url.getDefaultPort() : url.getPort());
+		Semaphore permits = hostPermits.get(hostKey);
+		if(permits == null) {
+			Semaphore newPermits = new Semaphore(maxConnectionsPerHost, true);
+			permits = hostPermits.putIfAbsent(hostKey, newPermits);
+			if(permits == null) permits = newPermits;
+		}
+		return(permits);
+	}
+
+	/** Reads whatever is left in the InputStream (up to MAX_DRAIN_BYTES) and closes it. Fully read
+	 * response bodies let HttpURLConnection return the underlying socket to the keep-alive cache.
+	 */
+	private static void drainAndClose(InputStream is) {
+		if(is == null) return;
+		try {
+			byte [] buf = new byte[4096];
+			int drained = 0, n;
+			while(drained < MAX_DRAIN_BYTES && (n = is.read(buf)) != -1) drained += n;
+		} catch (IOException e) {
+			//Connection is unusable anyway; closing it below is all we can do
+		} finally {
+			try { is.close(); } catch (IOException e) { }
+		}
+	}
+
+	/** Counts the bytes read through it into an Exchange */
+	private static class CountingInputStream extends FilterInputStream {
+		private final Exchange exchange;
+
+		CountingInputStream(InputStream in, Exchange exchange) {
+			super(in);
+			this.exchange = exchange;
+		}
+
+		public int read() throws IOException {
+			int b = super.read();
+			if(b >= 0) exchange.bytesReceived++;
+			return(b);
+		}
+
+		public int read(byte [] b, int off, int len) throws IOException {
+			int n = super.read(b, off, len);
+			if(n > 0) exchange.bytesReceived += n;
+			return(n);
+		}
+
+		public long skip(long n) throws IOException {
+			long skipped = super.skip(n);
+			exchange.bytesReceived += skipped;
+			return(skipped);
+		}
+	}
+}
@@ -0,0 +1,300 @@
+package com.yulaev.nodegtfsclient;
+
+import java.io.Reader;
+
+import org.json.JSONException;
+import org.json.JSONTokener;
+
+/** This class implements a pull (event) parser for JSON text, built on top of org.json.JSONTokener. Instead
+ * of building a tree of JSONObjects and JSONArrays it hands out one event at a time (START_OBJECT, KEY,
+ * STRING, ...), so callers can copy the fields they care about straight into their own objects and
+ * skip everything else without ever materialising it.
+ *
+ * The text of the current KEY, STRING or scalar event is kept in a single re-used buffer, available
+ * through text(); nothing is allocated per event unless the caller asks for a String.
+ *
+ * Example, reading the "stop_name" out of every object in an array:
+ * <pre>
+ * JSONPullParser p = new JSONPullParser(reader);
+ * p.next(); //START_ARRAY
+ * while(p.next() == JSONPullParser.START_OBJECT) {
+ *     while(p.next() == JSONPullParser.KEY) {
+ *         if(p.textEquals("stop_name") && p.next() == JSONPullParser.STRING) name = p.stringValue();
+ *         else p.skipValue();
+ *     }
+ * }
+ * </pre>
+ *
+ * @author iyulaev
+ */
+public class JSONPullParser {
+
+	//Events returned by next()
+	public static final int END_DOCUMENT = 0;
+	public static final int START_OBJECT = 1;
+	public static final int END_OBJECT = 2;
+	public static final int START_ARRAY = 3;
+	public static final int END_ARRAY = 4;
+	public static final int KEY = 5;
+	public static final int STRING = 6;
+	public static final int NUMBER = 7;
+	public static final int BOOLEAN = 8;
+	public static final int NULL = 9;
+
+	private static final byte IN_OBJECT = 1;
+	private static final byte IN_ARRAY = 2;
+
+	private final JSONTokener x;
+
+	//Text of the current KEY/STRING/NUMBER/BOOLEAN/NULL event
+	private final StringBuilder text = new StringBuilder(64);
+
+	//Stack of the containers we're in, and whether we've yet to see the first member of each
+	private byte [] containers = new byte[16];
+	private boolean [] firstMember = new boolean[16];
+	private int depth;
+
+	//true between a KEY event and the event for its value
+	private boolean afterKey;
+	//true once the top-level value has started
+	private boolean started;
+
+	private int event = -1;
+
+	public JSONPullParser(Reader reader) {
+		this(new JSONTokener(reader));
+	}
+
+	public JSONPullParser(JSONTokener x) {
+		this.x = x;
+	}
+
+	/** Advances to the next event.
+	 * @return The event type, one of the constants defined by this class
+	 * @throws JSONException if the JSON text is malformed
+	 */
+	public int next() throws JSONException {
+		if(depth == 0 && started) return(event = END_DOCUMENT);
+
+		char c = x.nextClean();
+		if(depth > 0 && !afterKey) {
+			int top = depth - 1;
+			if(containers[top] == IN_OBJECT) {
+				if(c == '}') { depth--; return(event = END_OBJECT); }
+				if(!firstMember[top]) {
+					if(c != ',') throw x.syntaxError("Expected a ',' or '}'");
+					c = x.nextClean();
+				}
+				firstMember[top] = false;
+				if(c != '"') throw x.syntaxError("Expected a quoted key");
+				readString(c);
+				if(x.nextClean() != ':') throw x.syntaxError("Expected a ':' after a key");
+				afterKey = true;
+				return(event = KEY);
+			} else {
+				if(c == ']') { depth--; return(event = END_ARRAY); }
+				if(!firstMember[top]) {
+					if(c != ',') throw x.syntaxError("Expected a ',' or ']'");
+					c = x.nextClean();
+				}
+				firstMember[top] = false;
+			}
+		}
+
+		afterKey = false;
+		started = true;
+
+		switch(c) {
+		case 0:
+			throw x.syntaxError("Unexpected end of JSON text");
+		case '{':
+			push(IN_OBJECT);
+			return(event = START_OBJECT);
+		case '[':
+			push(IN_ARRAY);
+			return(event = START_ARRAY);
+		case '"':
+		case '\'':
+			readString(c);
+			return(event = STRING);
+		}
+
+		//Unquoted text: true, false, null or a number
+		text.setLength(0);
+		while(c >= ' ' && ",:]}/\\\"[{;=#".indexOf(c) < 0) {
+			text.append(c);
+			c = x.next();
+		}
+		x.back();
+
+		if(text.length() == 0) throw x.syntaxError("Missing value");
+		if(textEquals("true") || textEquals("false")) return(event = BOOLEAN);
+		if(textEquals("null")) return(event = NULL);
+		return(event = NUMBER);
+	}
+
+	/** @return The type of the most recent event returned by next() */
+	public int getEvent() { return event; }
+
+	/** @return The current nesting depth (0 outside of any object or array) */
+	public int getDepth() { return depth; }
+
+	/** Skips the value at the current position. Call this right after a KEY event to skip that key's value
+	 * (including any nested objects or arrays), or right after a START_OBJECT/START_ARRAY event to skip
+	 * the remainder of that object or array.
+	 * @throws JSONException if the JSON text is malformed
+	 */
+	public void skipValue() throws JSONException {
+		int target;
+		if(event == START_OBJECT || event == START_ARRAY) target = depth - 1;
+		else {
+			target = depth;
+			int ev = next();
+			if(ev != START_OBJECT && ev != START_ARRAY) return;
+		}
+		while(depth > target) next();
+	}
+
+	/** @return The text of the current KEY, STRING or scalar event. Only valid until the next call to next(). */
+	public CharSequence text() { return text; }
+
+	/** @return The text of the current event as a new String */
+	public String stringValue() { return text.toString(); }
+
+	/** Compares the text of the current event to s without allocating.
+	 * @return true if the current event's text equals s
+	 */
+	public boolean textEquals(String s) {
+		int len = text.length();
+		if(len != s.length()) return false;
+		for(int i = 0; i < len; i++) if(text.charAt(i) != s.charAt(i)) return false;
+		return true;
+	}
+
+	/** Parses the text of the current event as an int.
+	 * @throws JSONException if the text is not an integer
+	 */
+	public int intValue() throws JSONException {
+		int len = text.length();
+		int i = 0;
+		boolean negative = false;
+		if(len > 0 && (text.charAt(0) == '-' || text.charAt(0) == '+')) { negative = text.charAt(0) == '-'; i++; }
+		if(i == len) throw x.syntaxError("Expected an integer, got \"" + text + "\"");
+
+		long value = 0;
+		for(; i < len; i++) {
+			char c = text.charAt(i);
+			if(c < '0' || c > '9' || value > Integer.MAX_VALUE) {
+				//Could be written as "3.0" or "3e0"; let Double sort it out
+				try { return((int) Double.parseDouble(text.toString())); }
+				catch (NumberFormatException e) { throw x.syntaxError("Expected an integer, got \"" + text + "\""); }
+			}
+			value = value * 10 + (c - '0');
+		}
+		return((int) (negative ? -value : value));
+	}
+
+	/** Parses the text of the current event, a co-ordinate given in floating-point degrees, into
+	 * microdegrees. Decimal text is converted exactly (digits beyond the sixth decimal place are
+	 * truncated) rather than going through a double.
+	 * @throws JSONException if the text is not a number
+	 */
+	public int microDegreesValue() throws JSONException {
+		try { return(parseMicroDegrees(text)); }
+		catch (NumberFormatException e) { throw x.syntaxError("Expected a number, got \"" + text + "\""); }
+	}
+
+	/** Parses decimal degrees text (e.g. "37.774929") into microdegrees, exactly: digits past the sixth
+	 * decimal place are truncated, just like NodeGtfsUrlMaker.doubleToMicroDegrees(), but without going
+	 * through a double.
+	 * @throws NumberFormatException if text isn't a number
+	 */
+	static int parseMicroDegrees(CharSequence text) {
+		int len = text.length();
+		int i = 0;
+		boolean negative = false;
+		if(len > 0 && (text.charAt(0) == '-' || text.charAt(0) == '+')) { negative = text.charAt(0) == '-'; i++; }
+
+		long whole = 0, fraction = 0;
+		int fractionDigits = 0, digits = 0;
+		boolean inFraction = false;
+		for(; i < len; i++) {
+			char c = text.charAt(i);
+			if(c >= '0' && c <= '9') {
+				digits++;
+				if(!inFraction) whole = whole * 10 + (c - '0');
+				else if(fractionDigits < 6) { fraction = fraction * 10 + (c - '0'); fractionDigits++; }
+			}
+			else if(c == '.' && !inFraction) inFraction = true;
+			else {
+				//Exponent notation or garbage - fall back to the slow path
+				return(NodeGtfsUrlMaker.doubleToMicroDegrees(Double.parseDouble(text.toString())));
+			}
+		}
+		if(digits == 0) throw new NumberFormatException("Expected a number, got \"" + text + "\"");
+
+		for(; fractionDigits < 6; fractionDigits++) fraction *= 10;
+		long micro = whole * 1000000L + fraction;
+		return((int) (negative ? -micro : micro));
+	}
+
+	private void push(byte container) {
+		if(depth == containers.length) {
+			byte [] newContainers = new byte[depth * 2];
+			boolean [] newFirst = new boolean[depth * 2];
+			System.arraycopy(containers, 0, newContainers, 0, depth);
+			System.arraycopy(firstMember, 0, newFirst, 0, depth);
+			containers = newContainers;
+			firstMember = newFirst;
+		}
+		containers[depth] = container;
+		firstMember[depth] = true;
+		depth++;
+	}
+
+	/** Reads a quoted string (the opening quote has already been consumed) into text, processing
+	 * escape sequences. Same rules as JSONTokener.nextString().
+	 */
+	private void readString(char quote) throws JSONException {
+		text.setLength(0);
+		for(;;) {
+			char c = x.next();
+			switch(c) {
+			case 0:
+			case '\n':
+			case '\r':
+				throw x.syntaxError("Unterminated string");
+			case '\\':
+				c = x.next();
+				switch(c) {
+				case 'b': text.append('\b'); break;
+				case 't': text.append('\t'); break;
+				case 'n': text.append('\n'); break;
+				case 'f': text.append('\f'); break;
+				case 'r': text.append('\r'); break;
+				case 'u':
+					int code = 0;
+					for(int i = 0; i < 4; i++) {
+						int h = JSONTokener.dehexchar(x.next());
+						if(h < 0) throw x.syntaxError("Illegal escape.");
+						code = (code << 4) | h;
+					}
+					text.append((char) code);
+					break;
+				case '"':
+				case '\'':
+				case '\\':
+				case '/':
+					text.append(c);
+					break;
+				default:
+					throw x.syntaxError("Illegal escape.");
+				}
+				break;
+			default:
+				if(c == quote) return;
+				text.append(c);
+			}
+		}
+	}
+}
@@ -25,6 +25,13 @@ public class JSONSimpleStopGenerator {
 	 * @return SimpleStop representing the same data as the JSONObject.
 	 */
 	public static SimpleStop jsonToSimpleStop(JSONObject stopObject) {
+		return(jsonToSimpleStop(stopObject, FetchListener.NO_OP));
+	}
+	
+	/** Same as jsonToSimpleStop(JSONObject), reporting fields that can't be converted to listener
+	 * (the SimpleStop is returned with whatever fields could be converted).
+	 */
+	public static SimpleStop jsonToSimpleStop(JSONObject stopObject, FetchListener listener) {
 		SimpleStop returned = new SimpleStop();
 		
 		try {
@@ -33,7 +40,7 @@ public class JSONSimpleStopGenerator {
 			if(stopObject.has("stop_lon")) returned.lon = (int) (1000000.0 * stopObject.getDouble("stop_lon"));
 			if(stopObject.has("agency_key")) returned.agency = stopObject.getString("agency_key");
 		} catch (JSONException e) {
-			System.err.println(e);
+			listener.onParseError("Bad stop: " + e.getMessage());
 		}
 		
 		//Something about direction?
@@ -41,6 +48,56 @@ public class JSONSimpleStopGenerator {
 		return(returned);
 	}
 	
+	/** This method reads a JSON object representing a transit stop from a JSONPullParser and returns
+	 * the equivalent SimpleStop, without building an intermediate JSONObject. Fields that SimpleStop has
+	 * no use for (_id, loc, ...) are skipped over without being decoded.
+	 * @param p JSONPullParser positioned just after the START_OBJECT event of the stop
+	 * @return SimpleStop representing the same data as the JSON object, or null if one of its fields 
+	 * couldn't be converted (e.g. a non-numeric stop_lat). Either way, on return p is positioned on the 
+	 * matching END_OBJECT event.
+	 * @throws JSONException if the JSON text is malformed
+	 */
+	public static SimpleStop pullToSimpleStop(JSONPullParser p) throws JSONException {
+		return(pullToSimpleStop(p, FetchListener.NO_OP));
+	}
+	
+	/** Same as pullToSimpleStop(JSONPullParser), reporting stops that can't be converted to listener */
+	public static SimpleStop pullToSimpleStop(JSONPullParser p, FetchListener listener) throws JSONException {
+		SimpleStop returned = new SimpleStop();
+		String bad = null;
+		
+		while(p.next() == JSONPullParser.KEY) {
+			if(p.textEquals("stop_name")) { if(nextScalar(p)) returned.intersection = p.stringValue(); }
+			else if(p.textEquals("stop_lat")) { 
+				if(nextScalar(p)) {
+					try { returned.lat = p.microDegreesValue(); }
+					catch (JSONException e) { bad = e.getMessage(); }
+				}
+			}
+			else if(p.textEquals("stop_lon")) { 
+				if(nextScalar(p)) {
+					try { returned.lon = p.microDegreesValue(); }
+					catch (JSONException e) { bad = e.getMessage(); }
+				}
+			}
+			else if(p.textEquals("agency_key")) { if(nextScalar(p)) returned.agency = p.stringValue(); }
+			else p.skipValue();
+		}
+		
+		if(bad != null) { listener.onParseError("Bad stop: " + bad); return(null); }
+		return(returned);
+	}
+	
+	/** Advances p to the value following a KEY event.
+	 * @return true if the value is a string or number, false (having skipped it) if it is anything else
+	 */
+	static boolean nextScalar(JSONPullParser p) throws JSONException {
+		int ev = p.next();
+		if(ev == JSONPullParser.STRING || ev == JSONPullParser.NUMBER) return true;
+		if(ev == JSONPullParser.START_OBJECT || ev == JSONPullParser.START_ARRAY) p.skipValue();
+		return false;
+	}
+	
 	/** This method returns a convenient-for-debug String representation of SimpleStop objects
 	 * 
 	 * @param s SimpleStop object to create String representation for
@@ -0,0 +1,237 @@
+package com.yulaev.nodegtfsclient;
+
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.TimeZone;
+
+import org.json.JSONException;
+
+/** This class decodes node-gtfs API responses straight from the response body into Route, SimpleStop
+ * and Prediction objects. Rather than reading the whole body into a String and parsing that into a
+ * JSONArray, the top-level array is walked with a JSONPullParser sitting directly on the response
+ * Reader, and each element's fields are copied into its Route/SimpleStop as they are read. Neither the
+ * full body nor a JSONObject per element is ever held in memory, and the first objects are built while
+ * the rest of the response is still arriving.
+ *
+ * @author iyulaev
+ */
+public class JSONStreamDecoder {
+
+	/** Handler that decodes a node-gtfs list of routes */
+	public static final HttpTransport.ResponseHandler<ArrayList<Route>> ROUTE_LIST_HANDLER =
+			new HttpTransport.ResponseHandler<ArrayList<Route>>() {
+		public ArrayList<Route> handle(Reader body) throws JSONException { return(decodeRouteList(body)); }
+	};
+
+	/** Handler that decodes a node-gtfs list of stops */
+	public static final HttpTransport.ResponseHandler<ArrayList<SimpleStop>> STOP_LIST_HANDLER =
+			new HttpTransport.ResponseHandler<ArrayList<SimpleStop>>() {
+		public ArrayList<SimpleStop> handle(Reader body) throws JSONException { return(decodeStopList(body)); }
+	};
+
+	/** Handler that decodes a node-gtfs list of stop times */
+	public static final HttpTransport.ResponseHandler<ArrayList<Prediction>> PREDICTION_LIST_HANDLER =
+			new HttpTransport.ResponseHandler<ArrayList<Prediction>>() {
+		public ArrayList<Prediction> handle(Reader body) throws JSONException { return(decodePredictionList(body)); }
+	};
+
+	/** Decodes a JSON array of GTFS routes into a list of Route objects. Routes that could not be
+	 * converted, or that aren't valid (see Route.isValid()) are left out.
+	 * @param body Reader over a JSON-formatted array of routes
+	 * @return ArrayList of Route objects
+	 * @throws JSONException if body is not a well-formed JSON array
+	 */
+	public static ArrayList<Route> decodeRouteList(Reader body) throws JSONException {
+		return(decodeRouteList(body, FetchListener.NO_OP));
+	}
+
+	/** Same as decodeRouteList(Reader), reporting skipped elements to listener */
+	public static ArrayList<Route> decodeRouteList(Reader body, FetchListener listener) throws JSONException {
+		JSONPullParser p = new JSONPullParser(body);
+		ArrayList<Route> routeList = new ArrayList<Route>();
+
+		startArray(p);
+		for(int ev = p.next(); ev != JSONPullParser.END_ARRAY; ev = p.next()) {
+			if(ev == JSONPullParser.START_OBJECT) {
+				Route newRoute = new Route(p, listener);
+				if(newRoute.isValid()) routeList.add(newRoute);
+			}
+			else skipElement(p, "route", listener);
+		}
+
+		return(routeList);
+	}
+
+	/** Decodes a JSON array of GTFS stops into a list of SimpleStop objects. Stops that could not be 
+	 * converted are left out.
+	 * @param body Reader over a JSON-formatted array of stops
+	 * @return ArrayList of SimpleStop objects
+	 * @throws JSONException if body is not a well-formed JSON array
+	 */
+	public static ArrayList<SimpleStop> decodeStopList(Reader body) throws JSONException {
+		return(decodeStopList(body, FetchListener.NO_OP));
+	}
+
+	/** Same as decodeStopList(Reader), reporting skipped elements to listener */
+	public static ArrayList<SimpleStop> decodeStopList(Reader body, FetchListener listener) throws JSONException {
+		JSONPullParser p = new JSONPullParser(body);
+		ArrayList<SimpleStop> stopList = new ArrayList<SimpleStop>();
+
+		startArray(p);
+		for(int ev = p.next(); ev != JSONPullParser.END_ARRAY; ev = p.next()) {
+			if(ev == JSONPullParser.START_OBJECT) {
+				SimpleStop newStop = JSONSimpleStopGenerator.pullToSimpleStop(p, listener);
+				if(newStop != null) stopList.add(newStop);
+			}
+			else skipElement(p, "stop", listener);
+		}
+
+		return(stopList);
+	}
+
+	/** Decodes a JSON array of GTFS stops straight into a StopTable, without creating a SimpleStop (or, 
+	 * for values the table has seen before, a String) per stop. Stops that could not be converted are 
+	 * left out, and if the body can't be decoded at all, none of its stops are left in table.
+	 * @param body Reader over a JSON-formatted array of stops
+	 * @param table StopTable to append the stops to
+	 * @param routeName Route name to record for every stop, or null
+	 * @return The number of stops appended to table
+	 * @throws JSONException if body is not a well-formed JSON array
+	 */
+	public static int decodeStopTable(Reader body, StopTable table, String routeName) throws JSONException {
+		return(decodeStopTable(body, table, routeName, FetchListener.NO_OP));
+	}
+
+	/** Same as decodeStopTable(Reader, StopTable, String), reporting skipped elements to listener */
+	public static int decodeStopTable(Reader body, StopTable table, String routeName, FetchListener listener) throws JSONException {
+		JSONPullParser p = new JSONPullParser(body);
+		int start = table.size();
+		boolean complete = false;
+
+		//Each stop's row is appended before its fields are read, so that its strings can go straight from
+		//the parser into the table's dictionaries; rows of stops that turn out bad are dropped again
+		try {
+			startArray(p);
+			for(int ev = p.next(); ev != JSONPullParser.END_ARRAY; ev = p.next()) {
+				if(ev != JSONPullParser.START_OBJECT) { skipElement(p, "stop", listener); continue; }
+
+				int row = table.add(0, 0, null, routeName, null);
+				int lat = 0, lon = 0;
+				String bad = null;
+				while(p.next() == JSONPullParser.KEY) {
+					if(p.textEquals("stop_name")) { 
+						if(JSONSimpleStopGenerator.nextScalar(p)) table.setString(StopTable.INTERSECTION, row, p.text()); 
+					}
+					else if(p.textEquals("stop_lat")) { 
+						if(JSONSimpleStopGenerator.nextScalar(p)) {
+							try { lat = p.microDegreesValue(); }
+							catch (JSONException e) { bad = e.getMessage(); }
+						}
+					}
+					else if(p.textEquals("stop_lon")) { 
+						if(JSONSimpleStopGenerator.nextScalar(p)) {
+							try { lon = p.microDegreesValue(); }
+							catch (JSONException e) { bad = e.getMessage(); }
+						}
+					}
+					else if(p.textEquals("agency_key")) { 
+						if(JSONSimpleStopGenerator.nextScalar(p)) table.setString(StopTable.AGENCY, row, p.text()); 
+					}
+					else p.skipValue();
+				}
+				
+				if(bad != null) { listener.onParseError("Bad stop: " + bad); table.truncate(row); }
+				else table.setLocation(row, lat, lon);
+			}
+			complete = true;
+		} finally {
+			if(!complete) table.truncate(start);
+		}
+
+		return(table.size() - start);
+	}
+
+	/** Decodes a JSON array of "HH:MM:SS" stop times into Predictions. node-gtfs answers with a flat
+	 * list of times when asked for a single direction; a list of such lists is decoded as one list per
+	 * direction.
+	 *
+	 * @param body Reader over a JSON-formatted array of stop times, or an array of arrays of stop times
+	 * @return ArrayList holding one Prediction per list of times (assumes that all times correspond to
+	 * the same stop)
+	 * @throws JSONException if body is not a well-formed JSON array
+	 */
+	public static ArrayList<Prediction> decodePredictionList(Reader body) throws JSONException {
+		return(decodePredictionList(body, FetchListener.NO_OP));
+	}
+
+	/** Same as decodePredictionList(Reader), reporting skipped elements to listener */
+	public static ArrayList<Prediction> decodePredictionList(Reader body, FetchListener listener) throws JSONException {
+		JSONPullParser p = new JSONPullParser(body);
+		ArrayList<Prediction> predictionList = new ArrayList<Prediction>();
+
+		startArray(p);
+
+		//We assume that the returned times are in the same timezone that we are in
+		int nowSecs = GtfsTime.secondsSinceMidnight(System.currentTimeMillis(), TimeZone.getDefault());
+
+		//Times directly in the outer array form one Prediction; each nested array forms another
+		int [] predSecs = new int[16];
+		int count = 0;
+		boolean nested = false;
+		for(int ev = p.next(); ev != JSONPullParser.END_ARRAY; ev = p.next()) {
+			if(ev == JSONPullParser.START_ARRAY) {
+				int [] inner = new int[16];
+				int innerCount = 0;
+				for(ev = p.next(); ev != JSONPullParser.END_ARRAY; ev = p.next()) {
+					int secs = (ev == JSONPullParser.STRING) ? GtfsTime.parseSeconds(p.text()) : GtfsTime.INVALID;
+					if(secs == GtfsTime.INVALID) { skipElement(p, "stop time", listener); continue; }
+					inner = append(inner, innerCount++, GtfsTime.secondsUntil(secs, nowSecs));
+				}
+				predictionList.add(new Prediction(trim(inner, innerCount), false));
+				nested = true;
+				continue;
+			}
+
+			int secs = (ev == JSONPullParser.STRING) ? GtfsTime.parseSeconds(p.text()) : GtfsTime.INVALID;
+			if(secs == GtfsTime.INVALID) { skipElement(p, "stop time", listener); continue; }
+			predSecs = append(predSecs, count++, GtfsTime.secondsUntil(secs, nowSecs));
+		}
+
+		if(count > 0 || !nested) predictionList.add(0, new Prediction(trim(predSecs, count), false));
+
+		return(predictionList);
+	}
+
+	/** Stores value at index of array, growing the array if it is full.
+	 * @return array, or a bigger copy of it
+	 */
+	private static int [] append(int [] array, int index, int value) {
+		if(index == array.length) {
+			int [] grown = new int[index * 2];
+			System.arraycopy(array, 0, grown, 0, index);
+			array = grown;
+		}
+		array[index] = value;
+		return(array);
+	}
+
+	/** @return The first count elements of array */
+	private static int [] trim(int [] array, int count) {
+		int [] trimmed = new int[count];
+		System.arraycopy(array, 0, trimmed, 0, count);
+		return(trimmed);
+	}
+
+	/** Consumes the opening '[' of a JSON array.
+	 * @throws JSONException if the next token does not start an array
+	 */
+	static void startArray(JSONPullParser p) throws JSONException {
+		if(p.next() != JSONPullParser.START_ARRAY) throw new JSONException("A JSONArray text must start with '['");
+	}
+
+	/** Skips an array element that isn't of the expected type */
+	private static void skipElement(JSONPullParser p, String expected, FetchListener listener) throws JSONException {
+		listener.onParseError("Expected a " + expected + ", skipping unexpected JSON value");
+		if(p.getEvent() == JSONPullParser.START_OBJECT || p.getEvent() == JSONPullParser.START_ARRAY) p.skipValue();
+	}
+}
@@ -0,0 +1,101 @@
+package com.yulaev.nodegtfsclient;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/** This class implements a lock-free latency histogram in the style of HdrHistogram: values (in
+ * nanoseconds) are counted in log-linear buckets, each power-of-two range being split into SUB_BUCKETS
+ * equal slices, so any recorded value is reproduced to within 1/SUB_BUCKETS (1/128, under 0.8%) no matter
+ * how large it is. Recording is a single atomic increment; percentiles are computed on demand.
+ *
+ * Values from 0 up to MAX_TRACKABLE_NANOS (about 18 minutes) are tracked; larger values are counted as
+ * MAX_TRACKABLE_NANOS.
+ *
+ * @author iyulaev
+ */
+public class LatencyHistogram {
+
+	private static final int SUB_BITS = 8;
+	private static final int HALF = 1 << (SUB_BITS - 1);
+	public static final int SUB_BUCKETS = HALF;
+	public static final long MAX_TRACKABLE_NANOS = (1L << 40) - 1;
+
+	private final AtomicLongArray counts = new AtomicLongArray(indexOf(MAX_TRACKABLE_NANOS) + 1);
+	private final AtomicLong total = new AtomicLong();
+	private final AtomicLong sum = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+
+	/** Records one value.
+	 * @param nanos The latency, in nanoseconds (negative values are counted as 0)
+	 */
+	public void record(long nanos) {
+		long v = Math.max(0, Math.min(nanos, MAX_TRACKABLE_NANOS));
+		counts.incrementAndGet(indexOf(v));
+		total.incrementAndGet();
+		sum.addAndGet(v);
+
+		long m;
+		while(v > (m = max.get()) && !max.compareAndSet(m, v)) { }
+	}
+
+	/** @return The number of values recorded */
+	public long getCount() {
+		return(total.get());
+	}
+
+	/** @return The largest value recorded, in nanoseconds (exact) */
+	public long getMax() {
+		return(max.get());
+	}
+
+	/** @return The mean of the values recorded, in nanoseconds, or 0 if there are none */
+	public double getMean() {
+		long n = total.get();
+		return(n == 0 ? 0 : (double) sum.get() / n);
+	}
+
+	/** Returns the value at a given percentile: the smallest value that at least percentile% of the
+	 * recorded values are less than or equal to, to within the histogram's precision.
+	 * @param percentile Between 0 and 100
+	 * @return The value, in nanoseconds, or 0 if nothing has been recorded
+	 */
+	public long getValueAtPercentile(double percentile) {
+		//Counts are read one at a time while other threads record, so use their sum rather than total
+		int buckets = counts.length();
+		long [] snapshot = new long[buckets];
+		long n = 0;
+		for(int i = 0; i < buckets; i++) n += (snapshot[i] = counts.get(i));
+		if(n == 0) return(0);
+
+		long rank = Math.max(1, (long) Math.ceil(Math.min(100.0, Math.max(0.0, percentile)) / 100.0 * n));
+		long seen = 0;
+		for(int i = 0; i < buckets; i++) {
+			seen += snapshot[i];
+			if(seen >= rank) return(Math.min(highestValueAt(i), max.get()));
+		}
+		return(max.get());
+	}
+
+	/** Clears all recorded values */
+	public void reset() {
+		for(int i = 0; i < counts.length(); i++) counts.set(i, 0);
+		total.set(0);
+		sum.set(0);
+		max.set(0);
+	}
+
+	/** Bucket index of value v (0 <= v <= MAX_TRACKABLE_NANOS) */
+	static int indexOf(long v) {
+		if(v < 2 * HALF) return((int) v);
+		int shift = (63 - Long.numberOfLeadingZeros(v)) - SUB_BITS + 1;
+		return(shift * HALF + (int) (v >>> shift));
+	}
+
+	/** The largest value that falls in bucket i */
+	static long highestValueAt(int i) {
+		if(i < 2 * HALF) return(i);
+		int shift = i / HALF - 1;
+		long sub = i - (long) shift * HALF;
+		return(((sub + 1) << shift) - 1);
+	}
+}
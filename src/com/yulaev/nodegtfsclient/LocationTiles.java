@@ -0,0 +1,115 @@
+package com.yulaev.nodegtfsclient;
+
+/** This class divides the globe into a fixed grid of square (in degrees) tiles, so that location-based
+ * queries can be answered from whole tiles rather than from circles around the exact query point. Every
+ * user near the same spot then asks the server for the same tiles, with the same URLs, so the responses
+ * can be cached and shared (see TransitDataFetcher.setStopTiling()).
+ *
+ * node-gtfs can only search circles, so a tile is fetched as the smallest circle around it (centered on
+ * the tile, through its corners) and the response is cut down to the stops inside the tile itself, so
+ * that every stop belongs to exactly one tile.
+ *
+ * Tiles are identified by a long packing the tile's row (latitude) and column (longitude) numbers.
+ *
+ * @author iyulaev
+ */
+public class LocationTiles {
+
+	//Default tile size: 0.02 degrees, about 1.4 x 1.1 miles at mid latitudes
+	public static final int DEFAULT_TILE_MICRODEGREES = 20000;
+	public static final int DEFAULT_MAX_TILES_PER_QUERY = 16;
+
+	private static final int LAT_OFFSET = 90000000, LON_OFFSET = 180000000;
+	private static final double MILES_PER_DEGREE_LAT = 2 * Math.PI * StopIndex.EARTH_RADIUS_MILES / 360.0;
+
+	private final int tileSize;
+	private final int maxTilesPerQuery;
+
+	/** Creates a LocationTiles with the default tile size and per-query tile limit */
+	public LocationTiles() {
+		this(DEFAULT_TILE_MICRODEGREES, DEFAULT_MAX_TILES_PER_QUERY);
+	}
+
+	/** @param tileMicroDegrees Width and height of each tile, in microdegrees
+	 * @param maxTilesPerQuery Queries whose circle touches more tiles than this aren't tiled
+	 */
+	public LocationTiles(int tileMicroDegrees, int maxTilesPerQuery) {
+		if(tileMicroDegrees < 1000) throw new IllegalArgumentException("Tiles must be at least 1000 microdegrees across");
+		if(maxTilesPerQuery < 1) throw new IllegalArgumentException("maxTilesPerQuery must be at least 1");
+		this.tileSize = tileMicroDegrees;
+		this.maxTilesPerQuery = maxTilesPerQuery;
+	}
+
+	public int getTileMicroDegrees() { return tileSize; }
+	public int getMaxTilesPerQuery() { return maxTilesPerQuery; }
+
+	/** Finds the tiles that a search circle touches.
+	 * @param lat Latitude of the circle's center, in microdegrees
+	 * @param lon Longitude of the circle's center, in microdegrees
+	 * @param radius Radius of the circle, in miles
+	 * @return The tiles covering the circle's bounding box, or null if the query shouldn't be tiled (it
+	 * touches more than getMaxTilesPerQuery() tiles, a pole, or the antimeridian)
+	 */
+	public long [] covering(int lat, int lon, double radius) {
+		double dLat = radius / MILES_PER_DEGREE_LAT * 1e6;
+		double south = lat - dLat, north = lat + dLat;
+		if(south <= -LAT_OFFSET || north >= LAT_OFFSET) return(null);
+
+		//The box is widest (in degrees of longitude) on its edge nearest the pole
+		double maxAbsLat = Math.max(Math.abs(south), Math.abs(north)) / 1e6;
+		double dLon = dLat / Math.cos(Math.toRadians(maxAbsLat));
+		double west = lon - dLon, east = lon + dLon;
+		if(west < -LON_OFFSET || east >= LON_OFFSET) return(null);
+
+		int row0 = row((int) Math.floor(south)), row1 = row((int) Math.ceil(north));
+		int col0 = col((int) Math.floor(west)), col1 = col((int) Math.ceil(east));
+		long count = (long) (row1 - row0 + 1) * (col1 - col0 + 1);
+		if(count > maxTilesPerQuery) return(null);
+
+		long [] tiles = new long[(int) count];
+		int i = 0;
+		for(int r = row0; r <= row1; r++)
+			for(int c = col0; c <= col1; c++) tiles[i++] = tile(r, c);
+		return(tiles);
+	}
+
+	/** @return The tile that the point (lat, lon) lies in */
+	public long tileOf(int lat, int lon) {
+		return(tile(row(lat), col(lon)));
+	}
+
+	/** @return Whether the point (lat, lon) lies in tile */
+	public boolean contains(long tile, int lat, int lon) {
+		return(tileOf(lat, lon) == tile);
+	}
+
+	/** @return Latitude of the center of tile, in microdegrees */
+	public int centerLat(long tile) {
+		return(south(tile) + tileSize / 2);
+	}
+
+	/** @return Longitude of the center of tile, in microdegrees */
+	public int centerLon(long tile) {
+		return(west(tile) + tileSize / 2);
+	}
+
+	/** Returns the radius to fetch tile with: the distance from its center to its farthest corner, plus
+	 * a small margin for differences between our distance calculation and the server's, rounded up to
+	 * the 0.01 miles that NodeGtfsUrlMaker puts in URLs.
+	 * @return Radius in miles
+	 */
+	public double fetchRadius(long tile) {
+		int cLat = centerLat(tile), cLon = centerLon(tile);
+		int s = south(tile), w = west(tile);
+		double miles = 0;
+		for(int corner = 0; corner < 4; corner++)
+			miles = Math.max(miles, StopIndex.distanceMiles(cLat, cLon, s + (corner & 1) * tileSize, w + (corner >> 1) * tileSize));
+		return(Math.ceil((miles * 1.01 + 0.01) * 100) / 100);
+	}
+
+	private int row(int lat) { return(Math.floorDiv(lat + LAT_OFFSET, tileSize)); }
+	private int col(int lon) { return(Math.floorDiv(lon + LON_OFFSET, tileSize)); }
+	private static long tile(int row, int col) { return(((long) row << 32) | (col & 0xFFFFFFFFL)); }
+	private int south(long tile) { return((int) (tile >> 32) * tileSize - LAT_OFFSET); }
+	private int west(long tile) { return((int) tile * tileSize - LON_OFFSET); }
+}
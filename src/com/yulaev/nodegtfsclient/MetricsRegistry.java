@@ -0,0 +1,81 @@
+package com.yulaev.nodegtfsclient;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/** This class holds the EndpointMetrics of a TransitDataFetcher, one per NodeGtfsUrlMaker query type,
+ * and can publish them as MBeans on the platform MBeanServer, under
+ * "com.yulaev.nodegtfsclient:type=Endpoint,fetcher=&lt;name&gt;,query=&lt;query type&gt;".
+ *
+ * @author iyulaev
+ */
+public class MetricsRegistry {
+
+	public static final String JMX_DOMAIN = "com.yulaev.nodegtfsclient";
+
+	private final EndpointMetrics [] endpoints = new EndpointMetrics[NodeGtfsUrlMaker.DEFAULT_QUERY_TYPES];
+
+	//MBeans registered by register(), so that unregister() can remove them
+	private final ArrayList<ObjectName> registered = new ArrayList<ObjectName>();
+
+	public MetricsRegistry() {
+		for(int i = 0; i < endpoints.length; i++) endpoints[i] = new EndpointMetrics(NodeGtfsUrlMaker.getQueryName(i));
+	}
+
+	/** @param queryType One of NodeGtfsUrlMaker.QUERY_*
+	 * @return The metrics for queryType, or null for runtime-defined query types, which aren't tracked
+	 */
+	public EndpointMetrics forQuery(int queryType) {
+		return(queryType >= 0 && queryType < endpoints.length ? endpoints[queryType] : null);
+	}
+
+	/** Publishes every EndpointMetrics on the platform MBeanServer.
+	 * @param fetcherName Name to tell this registry's MBeans apart from those of other fetchers
+	 * @throws JMException if the MBeans can't be registered (e.g. the name is already taken)
+	 */
+	public void register(String fetcherName) throws JMException {
+		register(fetcherName, FetchListener.NO_OP);
+	}
+
+	/** Same as register(String), reporting MBeans of an earlier register() that can't be removed to listener */
+	public synchronized void register(String fetcherName, FetchListener listener) throws JMException {
+		unregister(listener);
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		for(EndpointMetrics endpoint : endpoints) {
+			ObjectName name = new ObjectName(JMX_DOMAIN + ":type=Endpoint,fetcher=" + ObjectName.quote(fetcherName)
+					+ ",query=" + endpoint.getQueryType());
+			server.registerMBean(endpoint, name);
+			registered.add(name);
+		}
+	}
+
+	/** Removes any MBeans published by register() */
+	public void unregister() {
+		unregister(FetchListener.NO_OP);
+	}
+
+	/** Same as unregister(), reporting MBeans that can't be removed to listener (the rest still are) */
+	public synchronized void unregister(FetchListener listener) {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		for(ObjectName name : registered) {
+			try { server.unregisterMBean(name); }
+			catch (JMException e) { listener.onError("Couldn't unregister MBean " + name, e); }
+		}
+		registered.clear();
+	}
+
+	/** Clears the metrics of every query type */
+	public void reset() {
+		for(EndpointMetrics endpoint : endpoints) endpoint.reset();
+	}
+
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		for(EndpointMetrics endpoint : endpoints) sb.append(endpoint).append('\n');
+		return(sb.toString());
+	}
+}
@@ -24,6 +24,11 @@ public class NodeGtfsUrlMaker {
 	public static int QUERY_STOPS_BY_LOC = 3;
 	public static int QUERY_STOP_DETAILS = 4;
 	public static int QUERY_STOP_DETAILS_BY_ROUTE = 5;
+	//Number of built-in query types above; runtime-defined queries are numbered from here on
+	public static final int DEFAULT_QUERY_TYPES = 6;
+	//Short names of the built-in query types, indexed by query type (for metrics and diagnostics)
+	private static final String [] QUERY_NAMES = {"routesByAgency", "stopsByRoute", "routesByLoc", "stopsByLoc",
+		"stopDetails", "stopDetailsByRoute"};
 	//bonusQueries is for supporting additional queries that can be added at runtime
 	private HashMap <String, String> bonusQueries; 
 	
@@ -32,6 +37,13 @@ public class NodeGtfsUrlMaker {
 	public double DEFAULT_SEARCH_RADIUS_STOPS = 1.0;
 	public double DEFAULT_SEARCH_RADIUS_AGENCIES = 1.0;
 	
+	/** @param queryType One of the QUERY_* types
+	 * @return A short name for queryType, e.g. "stopsByRoute" (runtime-defined types are named "query" + type)
+	 */
+	public static String getQueryName(int queryType) {
+		return(queryType >= 0 && queryType < QUERY_NAMES.length ? QUERY_NAMES[queryType] : "query" + queryType);
+	}
+	
 	/**Utility function to convert a double-formatted co-ordinate (like latitude or longitude) to a 
 	 * int-formatted one given in microdegrees.
 	 * @param coordinate the co-ordinate given as a double
@@ -76,7 +88,7 @@ public class NodeGtfsUrlMaker {
 		//Now insert the custom queries, both for the endPointMap (int -> URL)
 		//and bonusQuery (queryName -> URL)
 		if(newBonusQueries != null) {
-			int i = 6; 
+			int i = DEFAULT_QUERY_TYPES; 
 			
 			Iterator <String> keyIt = newBonusQueries.keySet().iterator();
 			while (keyIt.hasNext()) {
@@ -270,7 +282,7 @@ public class NodeGtfsUrlMaker {
 	 * http://node-gtfs.myfuckingserver.com
 	 */
 	public NodeGtfsUrlMaker(String domain) {
-		QUERY_TYPES = 6;
+		QUERY_TYPES = DEFAULT_QUERY_TYPES;
 		this.domainURL = domain;
 		
 		//Make sure to initialize the endPointMap with default values
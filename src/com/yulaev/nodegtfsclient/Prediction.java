@@ -1,68 +1,137 @@
 package com.yulaev.nodegtfsclient;
 
 /** This class implements a storage container for transit predictions. Generally, a prediction
- * is associated with a particular stop or other transit terminal. The predicted transit arrival
- * timer are stored in the data structure Prediction.predSecs, where each Long Object indicates
- * the predicted arrival time of a transit vehicle (bus, train, tram, etc). The arrival times
- * are measured in seconds; the server returns in "seconds from now" and we add the current 
- * time based on Date.getTime().
- * 
+ * is associated with a particular stop or other transit terminal. Each predicted arrival of a
+ * transit vehicle (bus, train, tram, etc) is stored as an offset, in seconds, from a common base
+ * time (the moment the Prediction was created, as given by System.currentTimeMillis()). The
+ * server returns times in "seconds from now"; those are exactly the offsets we store.
+ *
+ * Offsets are kept sorted in a plain int array, so a Prediction costs a few bytes per arrival
+ * rather than a boxed Long each, and iteration, formatting and "next arrival after t" lookups
+ * don't allocate.
+ *
  */
 
 import java.io.Serializable;
 import java.util.ArrayList;
-import java.util.Calendar;
-import java.util.Date;
-import java.util.GregorianCalendar;
+import java.util.Arrays;
+import java.util.TimeZone;
 
 public class Prediction implements Serializable {
 	/**
-	 * 
+	 *
 	 */
-	private static final long serialVersionUID = -9035403481950432311L;
-	public ArrayList<Long> predsSecs;
+	private static final long serialVersionUID = 3518224377712945760L;
+
+	//Time (ms since the epoch) that the offsets are relative to
+	private final long baseMillis;
+	//Predicted arrivals, in seconds after baseMillis, sorted ascending
+	private final int [] offsetSecs;
 	public boolean isRT;
-	
+
 	/** This constructor creates the Prediction object.
-	 * 
-	 * @param predsSecs Predicted transit arrival times, given in seconds from 
+	 *
+	 * @param predsSecs Predicted transit arrival times, given in seconds from
 	 * now
 	 * @param isRT Whether this prediction is real time or not (has no effect on
 	 * the stored data.
 	 */
 	public Prediction(int[] predsSecs, boolean isRT) {
+		this(System.currentTimeMillis(), predsSecs, isRT);
+	}
+
+	/** This constructor creates the Prediction object relative to an explicit base time.
+	 *
+	 * @param baseMillis The time (ms since the epoch) that predsSecs are relative to
+	 * @param predsSecs Predicted transit arrival times, given in seconds after baseMillis
+	 * @param isRT Whether this prediction is real time or not
+	 */
+	public Prediction(long baseMillis, int[] predsSecs, boolean isRT) {
 		super();
-		Date now = new Date();
-		this.predsSecs = new ArrayList<Long>();
-		for (int p : predsSecs) {
-			this.predsSecs.add(now.getTime()+p*60*1000);
-		}
+		this.baseMillis = baseMillis;
+		this.offsetSecs = predsSecs.clone();
+		Arrays.sort(this.offsetSecs);
 		this.isRT = isRT;
 	}
-	
+
+	/** @return The number of predicted arrivals */
+	public int size() {
+		return offsetSecs.length;
+	}
+
+	/** @return The time (ms since the epoch) that arrival offsets are relative to */
+	public long getBaseMillis() {
+		return baseMillis;
+	}
+
+	/** @param i Index of the arrival, between 0 and size()-1; arrivals are in chronological order
+	 * @return The predicted arrival time, in ms since the epoch
+	 */
+	public long getArrivalMillis(int i) {
+		return baseMillis + offsetSecs[i] * 1000L;
+	}
+
+	/** Finds the first predicted arrival strictly after t.
+	 * @param t Time in ms since the epoch
+	 * @return Index of the first arrival after t, or -1 if there is none
+	 */
+	public int indexOfNextArrivalAfter(long t) {
+		//Arrivals within the same second as t count as "not after"; compare in whole seconds from base
+		long afterSecs = Math.floorDiv(t - baseMillis, 1000L);
+		int lo = 0, hi = offsetSecs.length;
+		while(lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if(offsetSecs[mid] <= afterSecs) lo = mid + 1;
+			else hi = mid;
+		}
+		return lo < offsetSecs.length ? lo : -1;
+	}
+
+	/** @param t Time in ms since the epoch
+	 * @return The first predicted arrival (ms since the epoch) after t, or -1 if there is none
+	 */
+	public long nextArrivalAfter(long t) {
+		int i = indexOfNextArrivalAfter(t);
+		return i < 0 ? -1 : getArrivalMillis(i);
+	}
+
+	/** Appends a String representation of one predicted arrival to sb, given both in relative minutes
+	 * and as an absolute time, e.g. "7 min - 4:05 PM". Nothing is allocated beyond what sb needs to grow.
+	 * @param sb StringBuilder to append to
+	 * @param i Index of the arrival to format
+	 * @param nowMillis The time that relative minutes are measured from
+	 * @param timeZone Time zone to show the absolute time in
+	 * @return sb
+	 */
+	public StringBuilder formatTo(StringBuilder sb, int i, long nowMillis, TimeZone timeZone) {
+		long arrival = getArrivalMillis(i);
+		sb.append((int) ((arrival - nowMillis) / 60 / 1000)).append(" min - ");
+
+		long local = arrival + timeZone.getOffset(arrival);
+		int secOfDay = (int) Math.floorMod(Math.floorDiv(local, 1000L), (long) GtfsTime.SECONDS_PER_DAY);
+		int hour24 = secOfDay / 3600;
+		int minutes = (secOfDay / 60) % 60;
+
+		sb.append(hour24 % 12 == 0 ? 12 : hour24 % 12).append(':');
+		if(minutes < 10) sb.append('0');
+		sb.append(minutes).append(hour24 < 12 ? " AM" : " PM");
+		return sb;
+	}
+
 	/** Return a List of Strings representing this Prediction object. Each value
-	 * in the List lists a particular arrival time; the value is given both in 
+	 * in the List lists a particular arrival time; the value is given both in
 	 * relative minutes and an an absolute time.
 	 * @return List of Strings representing predicted arrival times of a transit
 	 * vehicle at a particular transit terminal.
 	 */
 	public ArrayList<String> format() {
-		ArrayList<String> str = new ArrayList<String>();
-		Date d = new Date();
-		Calendar c = new GregorianCalendar();
-		String time = null;
-		for (Long i : predsSecs) {
-			StringBuilder s = new StringBuilder("");
-			s.append((int)(d.getTime()-i)/-60/1000 + " min - ");
-			c.setTime(new Date(i));
-			
-			String minutes = c.get(Calendar.MINUTE)+"";
-			if(minutes.length() == 1) minutes = "0"+minutes;
-			
-			time=(c.get(Calendar.HOUR)==0?12:c.get(Calendar.HOUR)) + ":" + minutes 
-					+ " " + (c.get(Calendar.AM_PM)==0?"AM":"PM");
-			s.append(time);
-			str.add(s.toString());
+		ArrayList<String> str = new ArrayList<String>(offsetSecs.length);
+		long now = System.currentTimeMillis();
+		TimeZone tz = TimeZone.getDefault();
+		StringBuilder s = new StringBuilder(24);
+		for (int i = 0; i < offsetSecs.length; i++) {
+			s.setLength(0);
+			str.add(formatTo(s, i, now, tz).toString());
 		}
 		return str;
 	}
@@ -0,0 +1,264 @@
+package com.yulaev.nodegtfsclient;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** This class polls node-gtfs for predictions in the background and pushes them to subscribers. However
+ * many subscribers are watching the same (agency, route, stop) triple, it is polled only once per
+ * interval, and every subscriber gets the same result.
+ *
+ * The polling interval adapts to the predictions: while a vehicle is imminent the stop is polled
+ * often (down to minIntervalMs), and when the next arrival is far away it is polled rarely (up to
+ * maxIntervalMs). Concretely the next poll is scheduled for a quarter of the time until the next
+ * predicted arrival, clamped to [minIntervalMs, maxIntervalMs].
+ *
+ * The polls themselves (blocking fetches, which may take as long as the transport's timeouts) run on an
+ * Executor, by default the fetcher's async executor, so that a slow stop doesn't hold up the others; a
+ * single scheduler thread only hands each poll to it when it is due.
+ *
+ * A poll that fails (the request can't be made, times out, or gets an error status) is not taken to
+ * mean "no arrivals": subscribers keep the last good result, and the stop is polled again after
+ * minIntervalMs, doubling with each further failure up to maxIntervalMs.
+ *
+ * @author iyulaev
+ */
+public class PredictionPoller {
+
+	public static final long DEFAULT_MIN_INTERVAL_MS = 15 * 1000L;
+	public static final long DEFAULT_MAX_INTERVAL_MS = 5 * 60 * 1000L;
+
+	/** Receives predictions for a subscribed stop */
+	public interface PredictionListener {
+		/** Called on a poller thread each time the stop is polled, and once with the last result when 
+		 * subscribing to a stop that has already been polled.
+		 * @param agency Agency key of the stop
+		 * @param route_id Route ID of the stop
+		 * @param stop_id Stop ID of the stop
+		 * @param predictions The freshly fetched predictions (shared between subscribers; don't modify)
+		 */
+		void onPredictions(String agency, String route_id, String stop_id, List<Prediction> predictions);
+	}
+
+	/** Handle returned by subscribe(); cancel() it to stop receiving updates */
+	public interface Subscription {
+		void cancel();
+	}
+
+	private final TransitDataFetcher fetcher;
+	private final ScheduledExecutorService scheduler;
+	private final Executor pollExecutor;
+	private final long minIntervalMs, maxIntervalMs;
+
+	//One poll per watched triple, keyed by "agency/route_id/stop_id"
+	private final ConcurrentHashMap<String, StopPoll> polls = new ConcurrentHashMap<String, StopPoll>();
+
+	/** Creates a PredictionPoller with the default polling interval bounds */
+	public PredictionPoller(TransitDataFetcher fetcher) {
+		this(fetcher, DEFAULT_MIN_INTERVAL_MS, DEFAULT_MAX_INTERVAL_MS);
+	}
+
+	/** Creates a PredictionPoller that polls on the fetcher's async executor.
+	 * @param fetcher TransitDataFetcher to poll with
+	 * @param minIntervalMs Shortest time between polls of the same stop
+	 * @param maxIntervalMs Longest time between polls of the same stop
+	 */
+	public PredictionPoller(TransitDataFetcher fetcher, long minIntervalMs, long maxIntervalMs) {
+		this(fetcher, minIntervalMs, maxIntervalMs, null);
+	}
+
+	/** Creates a PredictionPoller.
+	 * @param fetcher TransitDataFetcher to poll with
+	 * @param minIntervalMs Shortest time between polls of the same stop
+	 * @param maxIntervalMs Longest time between polls of the same stop
+	 * @param pollExecutor Executor to run polls (and listener callbacks) on, or null to use the fetcher's
+	 * async executor (see TransitDataFetcher.getAsyncExecutor())
+	 */
+	public PredictionPoller(TransitDataFetcher fetcher, long minIntervalMs, long maxIntervalMs, Executor pollExecutor) {
+		if(minIntervalMs <= 0 || maxIntervalMs < minIntervalMs) throw new IllegalArgumentException("Bad polling interval bounds");
+		this.fetcher = fetcher;
+		this.minIntervalMs = minIntervalMs;
+		this.maxIntervalMs = maxIntervalMs;
+		this.pollExecutor = pollExecutor;
+		this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "node-gtfs-poller-" + count.incrementAndGet());
+				t.setDaemon(true);
+				return(t);
+			}
+		});
+	}
+
+	/** Subscribes listener to predictions for a stop. If the stop is already being polled for another
+	 * subscriber, the new subscriber joins that poll, and is handed its last result straight away if 
+	 * there is one; otherwise a poll is started right away.
+	 * @return Subscription that stops updates to listener when cancelled
+	 */
+	public Subscription subscribe(String agency, String route_id, String stop_id, PredictionListener listener) {
+		final String key = agency + "/" + route_id + "/" + stop_id;
+		final Subscriber subscriber = new Subscriber(listener);
+		for(;;) {
+			StopPoll poll = polls.get(key);
+			if(poll == null) {
+				StopPoll newPoll = new StopPoll(key, agency, route_id, stop_id);
+				poll = polls.putIfAbsent(key, newPoll);
+				if(poll == null) {
+					newPoll.subscribers.add(subscriber);
+					newPoll.schedule(0);
+					return(subscriptionFor(newPoll, subscriber));
+				}
+			}
+			synchronized(poll) {
+				//A poll whose last subscriber just left is on its way out; start a new one instead
+				if(!poll.stopped) {
+					poll.subscribers.add(subscriber);
+					if(poll.last != null) {
+						final StopPoll joined = poll;
+						final List<Prediction> last = poll.last;
+						final long version = poll.version;
+						try {
+							executor().execute(new Runnable() {
+								public void run() { joined.deliver(subscriber, version, last); }
+							});
+						} catch (RejectedExecutionException e) {
+							//The next poll will reach the subscriber instead
+						}
+					}
+					return(subscriptionFor(poll, subscriber));
+				}
+			}
+			polls.remove(key, poll);
+		}
+	}
+
+	/** @return The number of distinct stops currently being polled */
+	public int activePollCount() {
+		return(polls.size());
+	}
+
+	/** Stops all polling. Subscribers receive no further updates. */
+	public void shutdown() {
+		scheduler.shutdownNow();
+		polls.clear();
+	}
+
+	private Executor executor() {
+		return(pollExecutor != null ? pollExecutor : fetcher.getAsyncExecutor());
+	}
+
+	private Subscription subscriptionFor(final StopPoll poll, final Subscriber subscriber) {
+		return(new Subscription() {
+			public void cancel() {
+				synchronized(poll) {
+					poll.subscribers.remove(subscriber);
+					if(poll.subscribers.isEmpty() && !poll.stopped) {
+						poll.stopped = true;
+						if(poll.next != null) poll.next.cancel(false);
+						polls.remove(poll.key, poll);
+					}
+				}
+			}
+		});
+	}
+
+	/** How long to wait before polling again, given freshly fetched predictions */
+	long nextInterval(List<Prediction> predictions, long now) {
+		long nextArrival = -1;
+		for(Prediction p : predictions) {
+			long t = p.nextArrivalAfter(now);
+			if(t >= 0 && (nextArrival < 0 || t < nextArrival)) nextArrival = t;
+		}
+		if(nextArrival < 0) return(maxIntervalMs);
+		return(Math.max(minIntervalMs, Math.min(maxIntervalMs, (nextArrival - now) / 4)));
+	}
+
+	/** A subscribed listener, with the version of the last result it was given, so that the last result
+	 * handed to a new subscriber can't arrive after (and overwrite) a newer one
+	 */
+	private static class Subscriber {
+		final PredictionListener listener;
+		long delivered = -1;
+
+		Subscriber(PredictionListener listener) {
+			this.listener = listener;
+		}
+	}
+
+	/** Polling state for one (agency, route, stop) triple */
+	private class StopPoll implements Runnable {
+		final String key, agency, route_id, stop_id;
+		final CopyOnWriteArrayList<Subscriber> subscribers = new CopyOnWriteArrayList<Subscriber>();
+		ScheduledFuture<?> next;
+		boolean stopped;
+
+		//Result of the latest successful poll, a count of those, and failed polls since; guarded by this
+		List<Prediction> last;
+		long version;
+		int failures;
+
+		StopPoll(String key, String agency, String route_id, String stop_id) {
+			this.key = key;
+			this.agency = agency;
+			this.route_id = route_id;
+			this.stop_id = stop_id;
+		}
+
+		/** Schedules the next poll, which the scheduler thread hands to the poll executor when it is due */
+		synchronized void schedule(long delayMs) {
+			if(stopped || scheduler.isShutdown()) return;
+			next = scheduler.schedule(new Runnable() {
+				public void run() {
+					try { executor().execute(StopPoll.this); }
+					catch (RejectedExecutionException e) {
+						fetcher.getFetchListener().onError("Poll of " + key + " was rejected; retrying in " + maxIntervalMs + " ms", e);
+						schedule(maxIntervalMs);
+					}
+				}
+			}, delayMs, TimeUnit.MILLISECONDS);
+		}
+
+		public void run() {
+			List<Prediction> predictions;
+			try { predictions = fetcher.loadPredictionByStop(agency, route_id, stop_id, null); }
+			catch (Exception e) {
+				//The fetcher has reported the failure; keep the last result and retry soon
+				if(e instanceof InterruptedException) Thread.currentThread().interrupt();
+				if(scheduler.isShutdown()) return;
+				int n;
+				synchronized(this) { n = ++failures; }
+				schedule(Math.min(maxIntervalMs, minIntervalMs << Math.min(n - 1, 30)));
+				return;
+			}
+			if(scheduler.isShutdown()) return;
+
+			long v;
+			synchronized(this) {
+				last = predictions;
+				v = ++version;
+				failures = 0;
+			}
+			for(Subscriber subscriber : subscribers) deliver(subscriber, v, predictions);
+
+			schedule(nextInterval(predictions, System.currentTimeMillis()));
+		}
+
+		/** Hands the result of poll number v to subscriber, unless it has already had a newer one */
+		void deliver(Subscriber subscriber, long v, List<Prediction> predictions) {
+			synchronized(subscriber) {
+				if(v <= subscriber.delivered) return;
+				subscriber.delivered = v;
+				try { subscriber.listener.onPredictions(agency, route_id, stop_id, predictions); }
+				catch (RuntimeException e) { fetcher.getFetchListener().onError("PredictionListener of " + key + " threw", e); }
+			}
+		}
+	}
+}
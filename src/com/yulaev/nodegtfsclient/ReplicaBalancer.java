@@ -0,0 +1,250 @@
+package com.yulaev.nodegtfsclient;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.json.JSONException;
+
+/** This class spreads requests over several replicas of a node-gtfs server. Each request goes to the
+ * better of two replicas picked at random ("power of two choices"), where a replica's cost is its
+ * peak-EWMA latency times its number of outstanding requests plus one. Peak EWMA follows a latency
+ * spike straight away and only decays back over DEFAULT_DECAY_MS or so, so a replica that turns slow
+ * stops getting traffic at once, rather than after a long average catches up.
+ *
+ * A replica that fails (can't be reached, times out, or answers 5xx) DEFAULT_EJECT_AFTER_FAILURES times
+ * in a row is ejected: it gets no requests until its backoff (starting at DEFAULT_MIN_BACKOFF_MS and
+ * doubling with every ejection that isn't followed by a success, up to DEFAULT_MAX_BACKOFF_MS) has
+ * passed, after which it is tried again. If every replica is ejected, the one due back soonest is used.
+ * A request that times out waiting for one of HttpTransport's per-host connections never reached the
+ * replica, and doesn't count for or against it.
+ *
+ * Requests that fail before any of the response body was handed to the handler are retried once on
+ * another replica; node-gtfs requests are all idempotent GETs.
+ *
+ * @author iyulaev
+ */
+public class ReplicaBalancer {
+
+	public static final long DEFAULT_DECAY_MS = 10 * 1000L;
+	public static final int DEFAULT_EJECT_AFTER_FAILURES = 3;
+	public static final long DEFAULT_MIN_BACKOFF_MS = 1000L;
+	public static final long DEFAULT_MAX_BACKOFF_MS = 60 * 1000L;
+
+	//Cost of a replica that has requests outstanding but no latency sample yet, so that a new replica
+	//doesn't take every request until its first one comes back
+	private static final double UNSAMPLED_PENALTY_NANOS = 1e9;
+
+	private final List<Replica> replicas;
+	private volatile long decayNanos = DEFAULT_DECAY_MS * 1000000L;
+	private volatile int ejectAfterFailures = DEFAULT_EJECT_AFTER_FAILURES;
+	private volatile long minBackoffMs = DEFAULT_MIN_BACKOFF_MS, maxBackoffMs = DEFAULT_MAX_BACKOFF_MS;
+
+	/** One node-gtfs server, with the state the balancer keeps about it */
+	public class Replica {
+		private final String baseUrl;
+
+		//Guarded by this
+		private double latencyNanos;
+		private long lastSampleNanos;
+		private int outstanding;
+		private int consecutiveFailures, ejections;
+		private long ejectedUntilNanos;
+		private long requests, failures;
+
+		Replica(String baseUrl) {
+			this.baseUrl = baseUrl;
+			this.ejectedUntilNanos = System.nanoTime();
+		}
+
+		public String getBaseUrl() { return baseUrl; }
+		public synchronized int getOutstanding() { return outstanding; }
+		public synchronized long getRequestCount() { return requests; }
+		public synchronized long getFailureCount() { return failures; }
+
+		/** @return The peak-EWMA latency (time to first byte) of this replica, in milliseconds */
+		public synchronized double getLatencyMs() { return latencyNanos / 1e6; }
+
+		/** @return Whether this replica is currently ejected */
+		public synchronized boolean isEjected() { return ejectedUntilNanos - System.nanoTime() > 0; }
+
+		synchronized double cost(long now) {
+			if(latencyNanos == 0) return(outstanding == 0 ? 0 : UNSAMPLED_PENALTY_NANOS + outstanding);
+			return(decayed(now) * (outstanding + 1));
+		}
+
+		synchronized void begin() {
+			outstanding++;
+			requests++;
+		}
+
+		/** Undoes begin() for a request that never reached the replica */
+		synchronized void abandon() {
+			outstanding--;
+			requests--;
+		}
+
+		/** Ends a request started with begin().
+		 * @param healthy Whether the replica answered (whatever the answer was)
+		 * @param rttNanos Time to first byte, or 0 if unknown
+		 */
+		synchronized void end(boolean healthy, long rttNanos) {
+			outstanding--;
+			long now = System.nanoTime();
+			if(healthy) {
+				consecutiveFailures = 0;
+				ejections = 0;
+				if(rttNanos > 0) sample(now, rttNanos);
+				return;
+			}
+
+			failures++;
+			if(++consecutiveFailures >= ejectAfterFailures) {
+				consecutiveFailures = 0;
+				long backoffMs = Math.min(maxBackoffMs, minBackoffMs << Math.min(ejections, 30));
+				ejections++;
+				ejectedUntilNanos = now + backoffMs * 1000000L;
+			}
+		}
+
+		//Peak EWMA: jump up to any sample above the average, decay towards samples below it
+		private void sample(long now, long rttNanos) {
+			latencyNanos = (rttNanos > latencyNanos) ? rttNanos : latencyNanos + (rttNanos - latencyNanos) * (1 - weight(now));
+			lastSampleNanos = now;
+		}
+
+		//The latency estimate also decays while a replica gets no requests, so that one that was slow
+		//eventually gets tried again instead of being starved of the traffic that would show it recovered
+		private double decayed(long now) {
+			return(latencyNanos * weight(now));
+		}
+
+		private double weight(long now) {
+			return(Math.exp(-(double) Math.max(0, now - lastSampleNanos) / decayNanos));
+		}
+
+		synchronized long ejectedUntil() { return ejectedUntilNanos; }
+
+		public String toString() {
+			return(String.format("{%s: latency=%.2f ms, outstanding=%d, requests=%d, failures=%d%s}", baseUrl,
+					getLatencyMs(), getOutstanding(), getRequestCount(), getFailureCount(), isEjected() ? ", ejected" : ""));
+		}
+	}
+
+	/** @param baseUrls URLs of the node-gtfs replicas, e.g. http://10.0.0.1:8081 */
+	public ReplicaBalancer(List<String> baseUrls) {
+		if(baseUrls.isEmpty()) throw new IllegalArgumentException("At least one replica is required");
+		ArrayList<Replica> list = new ArrayList<Replica>();
+		for(String url : baseUrls) {
+			while(url.endsWith("/")) url = url.substring(0, url.length() - 1);
+			list.add(new Replica(url));
+		}
+		this.replicas = Collections.unmodifiableList(list);
+	}
+
+	/** Sets how long a latency spike takes to decay (by a factor of e) once the replica is fast again.
+	 * @param decayMs Decay time in milliseconds (default DEFAULT_DECAY_MS)
+	 */
+	public void setDecayTime(long decayMs) {
+		if(decayMs < 1) throw new IllegalArgumentException("decayMs must be at least 1");
+		this.decayNanos = decayMs * 1000000L;
+	}
+
+	/** Sets when replicas are ejected, and for how long.
+	 * @param afterFailures Consecutive failures that eject a replica (default DEFAULT_EJECT_AFTER_FAILURES)
+	 * @param minBackoffMs Length of a first ejection, in milliseconds (default DEFAULT_MIN_BACKOFF_MS)
+	 * @param maxBackoffMs Longest ejection, in milliseconds (default DEFAULT_MAX_BACKOFF_MS)
+	 */
+	public void setEjection(int afterFailures, long minBackoffMs, long maxBackoffMs) {
+		if(afterFailures < 1) throw new IllegalArgumentException("afterFailures must be at least 1");
+		if(minBackoffMs < 0 || maxBackoffMs < minBackoffMs) throw new IllegalArgumentException("Need 0 <= minBackoffMs <= maxBackoffMs");
+		this.ejectAfterFailures = afterFailures;
+		this.minBackoffMs = minBackoffMs;
+		this.maxBackoffMs = maxBackoffMs;
+	}
+
+	/** @return The replicas, in the order they were given */
+	public List<Replica> getReplicas() {
+		return(replicas);
+	}
+
+	/** Fetches path from the best replica, retrying once on another replica if the request fails before
+	 * reaching the handler.
+	 * @param transport HttpTransport to make the request with
+	 * @param path Request path (and query), appended to the replica's base URL
+	 * @param handler The ResponseHandler that will consume the response body
+	 * @param exchange Records timings and bytes of the request (the last attempt's, if it was retried)
+	 * @return Whatever handler returned
+	 * @throws IOException if the request failed on every replica tried
+	 * @throws JSONException if handler failed to parse the response body
+	 */
+	public <T> T fetch(HttpTransport transport, String path, HttpTransport.ResponseHandler<T> handler,
+			HttpTransport.Exchange exchange) throws IOException, JSONException {
+		Replica previous = null;
+		for(int attempt = 1; ; attempt++) {
+			Replica replica = pick(previous);
+			boolean healthy = false, reached = true;
+			replica.begin();
+			try {
+				T result = transport.fetch(replica.baseUrl + path, handler, exchange);
+				healthy = true;
+				return(result);
+			} catch (HttpTransport.ConnectionPoolTimeoutException e) {
+				//Our own per-host connection limit ran out; the replica never saw the request
+				reached = false;
+				if(attempt > 1 || replicas.size() == 1) throw e;
+			} catch (HttpTransport.HttpStatusException e) {
+				//The replica answered; only server errors count against it
+				healthy = e.getStatus() < 500;
+				if(healthy || attempt > 1 || replicas.size() == 1) throw e;
+			} catch (IOException e) {
+				//Only retry if the handler never saw the response
+				if(exchange.getResponseNanos() != 0 || attempt > 1 || replicas.size() == 1) throw e;
+			} catch (JSONException e) {
+				//JSONTokener wraps errors reading the body (e.g. a replica stalling mid-response) in a
+				//JSONException; only a body that arrived but didn't parse means the replica is fine
+				healthy = !(e.getCause() instanceof IOException);
+				throw e;
+			} finally {
+				long rtt = (exchange.getResponseNanos() != 0) ? exchange.getResponseNanos() - exchange.getStartNanos() : 0;
+				if(reached) replica.end(healthy, rtt);
+				else replica.abandon();
+			}
+			previous = replica;
+		}
+	}
+
+	/** Picks the replica for a request: the cheaper of two random replicas that aren't ejected.
+	 * @param exclude Replica to avoid if there is any other choice, or null
+	 */
+	Replica pick(Replica exclude) {
+		long now = System.nanoTime();
+		ArrayList<Replica> available = new ArrayList<Replica>(replicas.size());
+		for(Replica r : replicas)
+			if(r != exclude && r.ejectedUntil() - now <= 0) available.add(r);
+
+		if(available.isEmpty()) {
+			//Everything is ejected (or excluded): use whichever replica is due back first
+			Replica soonest = null;
+			for(Replica r : replicas)
+				if(r != exclude && (soonest == null || r.ejectedUntil() - soonest.ejectedUntil() < 0)) soonest = r;
+			return(soonest != null ? soonest : exclude);
+		}
+		if(available.size() == 1) return(available.get(0));
+
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		int i = random.nextInt(available.size());
+		int j = random.nextInt(available.size() - 1);
+		if(j >= i) j++;
+		Replica a = available.get(i), b = available.get(j);
+		return(a.cost(now) <= b.cost(now) ? a : b);
+	}
+
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		for(Replica r : replicas) sb.append(r).append('\n');
+		return(sb.toString());
+	}
+}
@@ -0,0 +1,236 @@
+package com.yulaev.nodegtfsclient;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/** This class implements a bounded in-memory cache of decoded node-gtfs responses, keyed by request URL.
+ * Each entry expires after a time-to-live that depends on the kind of query it came from (one of the
+ * NodeGtfsUrlMaker.QUERY_* types); query types with a TTL of zero are never cached. When the cache is
+ * full the least recently used entry is evicted.
+ *
+ * Expired entries are served stale-while-revalidate: for up to getMaxStaleness() past its TTL an entry
+ * is still returned by get(), and the first caller to see it stale claims its refresh (claimRefresh())
+ * and fetches a replacement in the background, so no caller has to wait for the server when an entry
+ * expires. Past that bound the entry is no longer served and the next caller fetches it as usual.
+ *
+ * Entries can be stored with the validators (ETag, Last-Modified) of the response they came from, and
+ * getStored() hands those back (for as long as the entry stays in the cache, even past its staleness
+ * bound) so that refreshes can be conditional requests; on 304 Not Modified the cached value is simply
+ * put() again.
+ *
+ * By default only the mostly-static queries are cached: routes by agency and stops by route, for
+ * DEFAULT_STATIC_TTL_MS each. Hit, stale hit, miss and eviction counts are kept for monitoring.
+ *
+ * @author iyulaev
+ */
+public class ResponseCache {
+
+	public static final int DEFAULT_MAX_ENTRIES = 1000;
+	public static final long DEFAULT_STATIC_TTL_MS = 60L * 60L * 1000L;
+	public static final long DEFAULT_MAX_STALE_MS = 10L * 60L * 1000L;
+
+	private final int maxEntries;
+
+	//TTL for each query type, in milliseconds, indexed by NodeGtfsUrlMaker.QUERY_* type
+	private final long [] ttlMs;
+
+	//Access-ordered, so that iteration starts at the least recently used entry
+	private final LinkedHashMap<String, Entry> entries;
+
+	//How long past its TTL an entry may still be served while it is refreshed
+	private long maxStaleMs = DEFAULT_MAX_STALE_MS;
+
+	private long hits, staleHits, misses, evictions;
+
+	private static class Entry {
+		final Object value;
+		final long expiresAt;
+		final String etag, lastModified;
+
+		//Set once a caller has claimed this entry's refresh
+		boolean refreshing;
+
+		Entry(Object value, long expiresAt, String etag, String lastModified) {
+			this.value = value;
+			this.expiresAt = expiresAt;
+			this.etag = etag;
+			this.lastModified = lastModified;
+		}
+
+		boolean hasValidators() { return(etag != null || lastModified != null); }
+	}
+
+	/** A cached response together with the validators of the HTTP response it was decoded from */
+	public static class StoredResponse {
+		private final Object value;
+		private final String etag, lastModified;
+
+		StoredResponse(Object value, String etag, String lastModified) {
+			this.value = value;
+			this.etag = etag;
+			this.lastModified = lastModified;
+		}
+
+		@SuppressWarnings("unchecked")
+		public <T> T getValue() { return((T) value); }
+		/** @return The ETag of the response, or null */
+		public String getETag() { return etag; }
+		/** @return The Last-Modified date of the response, or null */
+		public String getLastModified() { return lastModified; }
+	}
+
+	/** Creates a ResponseCache holding up to DEFAULT_MAX_ENTRIES responses, with the default TTLs */
+	public ResponseCache() {
+		this(DEFAULT_MAX_ENTRIES);
+	}
+
+	/** Creates a ResponseCache with the default TTLs.
+	 * @param maxEntries Maximum number of responses to hold before evicting the least recently used one
+	 */
+	public ResponseCache(int maxEntries) {
+		if(maxEntries < 1) throw new IllegalArgumentException("maxEntries must be at least 1");
+		this.maxEntries = maxEntries;
+		this.ttlMs = new long[NodeGtfsUrlMaker.DEFAULT_QUERY_TYPES];
+		this.ttlMs[NodeGtfsUrlMaker.QUERY_ROUTES_BY_AGENCY] = DEFAULT_STATIC_TTL_MS;
+		this.ttlMs[NodeGtfsUrlMaker.QUERY_STOPS_BY_ROUTE] = DEFAULT_STATIC_TTL_MS;
+		this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+	}
+
+	/** Sets how long responses to a given kind of query stay in the cache.
+	 * @param queryType One of the NodeGtfsUrlMaker.QUERY_* types
+	 * @param ttlMs Time-to-live in milliseconds; 0 disables caching for this query type
+	 */
+	public synchronized void setTtl(int queryType, long ttlMs) {
+		if(queryType < 0 || queryType >= this.ttlMs.length) throw new IllegalArgumentException("Unknown query type " + queryType);
+		this.ttlMs[queryType] = ttlMs;
+	}
+
+	/** @return The time-to-live, in milliseconds, for responses to queryType (0 if they aren't cached) */
+	public synchronized long getTtl(int queryType) {
+		if(queryType < 0 || queryType >= ttlMs.length) return 0;
+		return(ttlMs[queryType]);
+	}
+
+	/** Sets how long past its TTL an entry may still be served while a replacement is fetched.
+	 * @param maxStaleMs Maximum staleness in milliseconds (default DEFAULT_MAX_STALE_MS); 0 makes entries
+	 * expire exactly at their TTL
+	 */
+	public synchronized void setMaxStaleness(long maxStaleMs) {
+		if(maxStaleMs < 0) throw new IllegalArgumentException("maxStaleMs must not be negative");
+		this.maxStaleMs = maxStaleMs;
+	}
+
+	public synchronized long getMaxStaleness() { return maxStaleMs; }
+
+	/** Looks up the response cached for key. The response may be stale (past its TTL, but within 
+	 * getMaxStaleness() of it); callers that can refresh it should then call claimRefresh().
+	 * @param key The request URL
+	 * @return The cached response, or null if there is none or it is more than getMaxStaleness() past its TTL
+	 */
+	@SuppressWarnings("unchecked")
+	public synchronized <T> T get(String key) {
+		Entry e = live(key);
+		if(e == null) { misses++; return(null); }
+		if(e.expiresAt <= System.currentTimeMillis()) staleHits++;
+		else hits++;
+		return((T) e.value);
+	}
+
+	/** Checks whether get() would return a response for key, without counting a hit or miss.
+	 * @param key The request URL
+	 */
+	public synchronized boolean contains(String key) {
+		return(live(key) != null);
+	}
+
+	/** Claims the refresh of a stale entry. Only the first caller to claim an entry gets true, so each 
+	 * stale entry is refreshed by a single request; the claim ends when a new response is put() for key, 
+	 * or the refresh is given up with refreshFailed().
+	 * @param key The request URL
+	 * @return True if the entry for key is stale and the caller should refresh it
+	 */
+	public synchronized boolean claimRefresh(String key) {
+		Entry e = live(key);
+		if(e == null || e.refreshing || e.expiresAt > System.currentTimeMillis()) return(false);
+		e.refreshing = true;
+		return(true);
+	}
+
+	/** Gives up a refresh claimed with claimRefresh(), so that a later caller can try again
+	 * @param key The request URL
+	 */
+	public synchronized void refreshFailed(String key) {
+		Entry e = entries.get(key);
+		if(e != null) e.refreshing = false;
+	}
+
+	/** Looks up the response cached for key along with its validators, to revalidate it with a 
+	 * conditional request. Doesn't count a hit or miss.
+	 * @param key The request URL
+	 * @return The cached response, however stale, or null if there is none or it has no validators
+	 */
+	public synchronized StoredResponse getStored(String key) {
+		Entry e = entries.get(key);
+		if(e == null || !e.hasValidators()) return(null);
+		return(new StoredResponse(e.value, e.etag, e.lastModified));
+	}
+
+	//Returns the entry for key, or null if it is past its staleness bound (in which case it is dropped, 
+	//unless it has validators and can still be revalidated)
+	private Entry live(String key) {
+		Entry e = entries.get(key);
+		if(e != null && e.expiresAt + maxStaleMs <= System.currentTimeMillis()) {
+			if(!e.hasValidators()) entries.remove(key);
+			e = null;
+		}
+		return(e);
+	}
+
+	/** Caches value as the response for key, unless queryType isn't cached.
+	 * @param queryType The NodeGtfsUrlMaker.QUERY_* type of the request
+	 * @param key The request URL
+	 * @param value The decoded response
+	 */
+	public synchronized void put(int queryType, String key, Object value) {
+		put(queryType, key, value, null, null);
+	}
+
+	/** Caches value as the response for key, with the validators of the HTTP response it was decoded 
+	 * from, unless queryType isn't cached.
+	 * @param queryType The NodeGtfsUrlMaker.QUERY_* type of the request
+	 * @param key The request URL
+	 * @param value The decoded response
+	 * @param etag The response's ETag header, or null
+	 * @param lastModified The response's Last-Modified header, or null
+	 */
+	public synchronized void put(int queryType, String key, Object value, String etag, String lastModified) {
+		long ttl = getTtl(queryType);
+		if(ttl <= 0 || value == null) return;
+
+		entries.put(key, new Entry(value, System.currentTimeMillis() + ttl, etag, lastModified));
+		if(entries.size() > maxEntries) {
+			Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+			while(entries.size() > maxEntries && it.hasNext()) {
+				it.next();
+				it.remove();
+				evictions++;
+			}
+		}
+	}
+
+	/** Removes every entry from the cache (the counters are left alone) */
+	public synchronized void clear() { entries.clear(); }
+
+	public synchronized int size() { return entries.size(); }
+	public int getMaxEntries() { return maxEntries; }
+	public synchronized long getHitCount() { return hits; }
+	public synchronized long getStaleHitCount() { return staleHits; }
+	public synchronized long getMissCount() { return misses; }
+	public synchronized long getEvictionCount() { return evictions; }
+
+	public synchronized String toString() {
+		return("{ResponseCache: size=" + entries.size() + "/" + maxEntries + ", hits=" + hits + ", staleHits=" + staleHits + ", misses=" + misses
+				+ ", evictions=" + evictions + "}");
+	}
+}
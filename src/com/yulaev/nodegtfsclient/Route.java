@@ -10,11 +10,18 @@ public class Route implements Comparable {
 	private static final String [] ROUTE_TYPES = {"Tram", "Metro", "Rail", "Bus", "Ferry", "CableCar", "Gondola", "Furnicular"};
 	
 	public Route(String route_id, String sName, int route_type, String routeURL) {
-		this.routeId = routeId;
+		this(route_id, sName, sName, route_type, routeURL, null);
+	}
+	
+	/** This constructor creates a Route from already-decoded fields (e.g. read back from an AgencySnapshot)
+	 */
+	public Route(String route_id, String sName, String lName, int route_type, String routeURL, String agencyId) {
+		this.routeId = route_id;
 		this.route_type = route_type;
 		this.sName = sName;
-		this.lName = sName;
+		this.lName = lName;
 		this.routeURL = routeURL;
+		this.agencyId = agencyId;
 		isValid = true;
 	}
 	
@@ -22,6 +29,13 @@ public class Route implements Comparable {
 	 * @param jsonRoute JSONObject representing data that describes this Route
 	 */
 	public Route(JSONObject jsonRoute) {
+		this(jsonRoute, FetchListener.NO_OP);
+	}
+	
+	/** Same as Route(JSONObject); if jsonRoute can't be converted, the error is reported to listener and
+	 * the Route is left invalid (see isValid()).
+	 */
+	public Route(JSONObject jsonRoute, FetchListener listener) {
 		try {
 			if(jsonRoute.has("route_id")) this.routeId = jsonRoute.getString("route_id");
 			if(jsonRoute.has("route_type")) this.route_type = jsonRoute.getInt("route_type");
@@ -43,12 +57,58 @@ public class Route implements Comparable {
 			if(jsonRoute.has("route_url")) this.routeURL = jsonRoute.getString("route_url");
 			this.isValid = true;
 		} catch (JSONException e) {
-			System.err.println(e);
+			listener.onParseError("Bad route: " + e.getMessage());
 		}
 	}
 	
+	/** This constructor reads a Route straight out of a JSONPullParser, without building an intermediate
+	 * JSONObject. Fields that Route doesn't use are skipped over without being decoded.
+	 * @param p JSONPullParser positioned just after the START_OBJECT event of the route. On return it is
+	 * positioned on the matching END_OBJECT event.
+	 * @throws JSONException if the JSON text is malformed
+	 */
+	public Route(JSONPullParser p) throws JSONException {
+		this(p, FetchListener.NO_OP);
+	}
+	
+	/** Same as Route(JSONPullParser); if a field can't be converted (e.g. a non-numeric route_type), the
+	 * error is reported to listener, the rest of the route is read past, and the Route is left invalid
+	 * (see isValid()).
+	 */
+	public Route(JSONPullParser p, FetchListener listener) throws JSONException {
+		String bad = null;
+		while(p.next() == JSONPullParser.KEY) {
+			if(p.textEquals("route_id")) { if(JSONSimpleStopGenerator.nextScalar(p)) this.routeId = p.stringValue(); }
+			else if(p.textEquals("route_type")) { 
+				if(JSONSimpleStopGenerator.nextScalar(p)) {
+					try { this.route_type = p.intValue(); }
+					catch (JSONException e) { bad = e.getMessage(); }
+				}
+			}
+			else if(p.textEquals("route_short_name")) { if(JSONSimpleStopGenerator.nextScalar(p)) this.sName = p.stringValue(); }
+			else if(p.textEquals("route_long_name")) { if(JSONSimpleStopGenerator.nextScalar(p)) this.lName = p.stringValue(); }
+			else if(p.textEquals("agency_id")) { if(JSONSimpleStopGenerator.nextScalar(p)) this.agencyId = p.stringValue(); }
+			else if(p.textEquals("route_url")) { if(JSONSimpleStopGenerator.nextScalar(p)) this.routeURL = p.stringValue(); }
+			else p.skipValue();
+		}
+		
+		//Same fallbacks as Route(JSONObject): if only one of the names is given, use it for both
+		if(this.sName == null) this.sName = this.lName;
+		if(this.lName == null) this.lName = this.sName;
+		
+		if(bad != null) listener.onParseError("Bad route: " + bad);
+		this.isValid = (bad == null);
+	}
+	
 	public boolean isValid() { return this.isValid; }
 	
+	public String getRouteId() { return this.routeId; }
+	public String getShortName() { return this.sName; }
+	public String getLongName() { return this.lName; }
+	public String getRouteURL() { return this.routeURL; }
+	public String getAgencyId() { return this.agencyId; }
+	public int getRouteType() { return this.route_type; }
+	
 	/** Stupid string representation of this Route object, really just useful for simple testing */
 	public String toString() {
 		String returned = new String("");
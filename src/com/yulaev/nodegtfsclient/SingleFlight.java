@@ -0,0 +1,56 @@
+package com.yulaev.nodegtfsclient;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/** This class de-duplicates concurrent identical requests. While a request for some key is in flight,
+ * any other caller asking for the same key waits for that request to finish and gets its result (or
+ * its exception) instead of starting a request of its own. Once the request completes the key is
+ * forgotten, so later callers start a fresh request.
+ *
+ * TransitDataFetcher uses this with node-gtfs request URLs as keys, so that a crowd of callers asking
+ * for the same stop's predictions at the same moment results in a single request to the server.
+ *
+ * @author iyulaev
+ */
+public class SingleFlight {
+
+	//Requests currently in flight, keyed by request key
+	private final ConcurrentHashMap<String, FutureTask<Object>> inFlight = new ConcurrentHashMap<String, FutureTask<Object>>();
+
+	/** Runs request, unless a request for the same key is already in flight, in which case this waits
+	 * for that one and returns its result.
+	 * @param key Key identifying the request (e.g. its URL)
+	 * @param request The request to run if none is in flight for key
+	 * @return The result of whichever request ran
+	 * @throws Exception whatever the request that ran threw
+	 */
+	@SuppressWarnings("unchecked")
+	public <T> T execute(String key, Callable<T> request) throws Exception {
+		FutureTask<Object> task = new FutureTask<Object>((Callable<Object>) request);
+		FutureTask<Object> running = inFlight.putIfAbsent(key, task);
+
+		if(running == null) {
+			//We're the leader: run the request on this thread, then let the next caller start afresh
+			running = task;
+			try { task.run(); }
+			finally { inFlight.remove(key, task); }
+		}
+
+		try {
+			return((T) running.get());
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if(cause instanceof Exception) throw (Exception) cause;
+			if(cause instanceof Error) throw (Error) cause;
+			throw e;
+		}
+	}
+
+	/** @return The number of distinct requests currently in flight */
+	public int inFlightCount() {
+		return(inFlight.size());
+	}
+}
@@ -0,0 +1,340 @@
+package com.yulaev.nodegtfsclient;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+
+/** This class implements an in-memory spatial index over a set of SimpleStops, so that "which stops
+ * are within r miles of this point" and "which are the k stops closest to this point" can be answered
+ * locally instead of with a round trip to the node-gtfs server.
+ *
+ * The index is a static k-d tree. Every stop's micro-degree lat/lon is converted once to a point on
+ * the unit sphere, and the tree is built over those 3D points. Straight-line (chord) distance between
+ * points on the sphere grows monotonically with great-circle distance, so a radius query becomes an
+ * exact Euclidean ball query, with no special cases near the poles or the antimeridian. The tree is
+ * stored implicitly: the stops are reordered so that each subtree is a contiguous range of the arrays
+ * with its splitting point in the middle, so no per-node objects are allocated.
+ *
+ * A StopIndex is immutable once built and safe to query from multiple threads.
+ *
+ * @author iyulaev
+ */
+public class StopIndex {
+
+	//Mean radius of the Earth
+	public static final double EARTH_RADIUS_MILES = 3958.8;
+
+	//Stops and their unit-sphere co-ordinates, in tree order
+	private final SimpleStop [] stops;
+	private final double [] xs, ys, zs;
+
+	/** Builds a StopIndex over the given stops.
+	 * @param stopList The stops to index. The SimpleStop objects themselves are shared, not copied.
+	 */
+	public StopIndex(Collection<SimpleStop> stopList) {
+		int n = stopList.size();
+		this.stops = stopList.toArray(new SimpleStop[n]);
+		this.xs = new double[n];
+		this.ys = new double[n];
+		this.zs = new double[n];
+
+		for(int i = 0; i < n; i++) {
+			double lat = Math.toRadians(NodeGtfsUrlMaker.microDegreesToDouble(stops[i].lat));
+			double lon = Math.toRadians(NodeGtfsUrlMaker.microDegreesToDouble(stops[i].lon));
+			xs[i] = Math.cos(lat) * Math.cos(lon);
+			ys[i] = Math.cos(lat) * Math.sin(lon);
+			zs[i] = Math.sin(lat);
+		}
+
+		build(0, n, 0);
+	}
+
+	/** @return The number of stops in this index */
+	public int size() { return stops.length; }
+
+	/** Finds every stop within radius miles of (lat, lon).
+	 * @param lat Latitude, in microdegrees, of the center of the search circle
+	 * @param lon Longitude, in microdegrees, of the center of the search circle
+	 * @param radius Search radius in miles
+	 * @return The stops within radius miles of (lat, lon), nearest first
+	 */
+	public ArrayList<SimpleStop> withinRadius(int lat, int lon, double radius) {
+		double [] q = toUnitVector(lat, lon);
+		double chord = milesToChord(radius);
+
+		Hits hits = new Hits();
+		searchRadius(0, stops.length, 0, q, chord * chord, chord, hits);
+		return(hits.sortedStops());
+	}
+
+	/** Finds the k stops nearest to (lat, lon). The tree is searched best-first: subtrees are visited in
+	 * order of the smallest distance any of their stops could be from the query point, and the search
+	 * stops as soon as that lower bound exceeds the distance of the k-th best stop found so far, so only
+	 * a small neighbourhood of the tree is touched no matter how many stops it holds.
+	 * @param lat Latitude of the query point, in microdegrees
+	 * @param lon Longitude of the query point, in microdegrees
+	 * @param k Maximum number of stops to return
+	 * @param agency If non-null, only stops belonging to this agency are considered
+	 * @return Up to k stops, nearest first
+	 */
+	public ArrayList<SimpleStop> nearest(int lat, int lon, int k, String agency) {
+		if(k <= 0 || stops.length == 0) return(new ArrayList<SimpleStop>());
+		double [] q = toUnitVector(lat, lon);
+
+		NearestHits best = new NearestHits(k);
+		NodeQueue pending = new NodeQueue();
+		pending.push(0, stops.length, 0, 0.0);
+
+		while(pending.size > 0) {
+			if(best.isFull() && pending.minBound() > best.worst()) break;
+			int lo = pending.lo[0], hi = pending.hi[0], depth = pending.depth[0];
+			double bound = pending.bound[0];
+			pending.pop();
+
+			//Walk down towards the query point, queueing the far side of each split
+			while(lo < hi) {
+				if(best.isFull() && bound > best.worst()) break;
+
+				int mid = (lo + hi) >>> 1;
+				if(agency == null || agency.equals(stops[mid].agency)) best.offer(mid, chord2(mid, q));
+
+				int axis = depth % 3;
+				double diff = q[axis] - coord(mid, axis);
+				double farBound = Math.max(bound, diff * diff);
+				depth++;
+
+				if(diff <= 0) {
+					if(!best.isFull() || farBound <= best.worst()) pending.push(mid + 1, hi, depth, farBound);
+					hi = mid;
+				} else {
+					if(!best.isFull() || farBound <= best.worst()) pending.push(lo, mid, depth, farBound);
+					lo = mid + 1;
+				}
+			}
+		}
+
+		return(best.sortedStops());
+	}
+
+	public ArrayList<SimpleStop> nearest(int lat, int lon, int k) {
+		return(nearest(lat, lon, k, null));
+	}
+
+	/** Great-circle distance, in miles, between two points given in microdegrees */
+	public static double distanceMiles(int lat1, int lon1, int lat2, int lon2) {
+		double phi1 = Math.toRadians(NodeGtfsUrlMaker.microDegreesToDouble(lat1));
+		double phi2 = Math.toRadians(NodeGtfsUrlMaker.microDegreesToDouble(lat2));
+		double dPhi = phi2 - phi1;
+		double dLambda = Math.toRadians(NodeGtfsUrlMaker.microDegreesToDouble(lon2 - lon1));
+
+		double h = Math.sin(dPhi / 2) * Math.sin(dPhi / 2)
+				+ Math.cos(phi1) * Math.cos(phi2) * Math.sin(dLambda / 2) * Math.sin(dLambda / 2);
+		return(2 * EARTH_RADIUS_MILES * Math.asin(Math.min(1.0, Math.sqrt(h))));
+	}
+
+	/** Converts a great-circle distance in miles to the equivalent chord length on the unit sphere */
+	static double milesToChord(double miles) {
+		double angle = Math.min(Math.PI, Math.max(0.0, miles) / EARTH_RADIUS_MILES);
+		return(2 * Math.sin(angle / 2));
+	}
+
+	/** Converts a chord length on the unit sphere to the equivalent great-circle distance in miles */
+	static double chordToMiles(double chord) {
+		return(2 * EARTH_RADIUS_MILES * Math.asin(Math.min(1.0, chord / 2)));
+	}
+
+	static double [] toUnitVector(int lat, int lon) {
+		double phi = Math.toRadians(NodeGtfsUrlMaker.microDegreesToDouble(lat));
+		double lambda = Math.toRadians(NodeGtfsUrlMaker.microDegreesToDouble(lon));
+		return(new double[] { Math.cos(phi) * Math.cos(lambda), Math.cos(phi) * Math.sin(lambda), Math.sin(phi) });
+	}
+
+	/** Co-ordinate of stop i along the given axis (0 = x, 1 = y, 2 = z) */
+	private double coord(int i, int axis) {
+		return(axis == 0 ? xs[i] : (axis == 1 ? ys[i] : zs[i]));
+	}
+
+	private double chord2(int i, double [] q) {
+		double dx = xs[i] - q[0], dy = ys[i] - q[1], dz = zs[i] - q[2];
+		return(dx * dx + dy * dy + dz * dz);
+	}
+
+	/** Arranges [lo, hi) into a k-d subtree split on axis (depth % 3) at its middle element */
+	private void build(int lo, int hi, int depth) {
+		if(hi - lo <= 1) return;
+		int mid = (lo + hi) >>> 1;
+		select(lo, hi - 1, mid, depth % 3);
+		build(lo, mid, depth + 1);
+		build(mid + 1, hi, depth + 1);
+	}
+
+	/** Quickselect: partially sorts [lo, hi] along axis so that element k is in its sorted position */
+	private void select(int lo, int hi, int k, int axis) {
+		while(hi > lo) {
+			double pivot = coord((lo + hi) >>> 1, axis);
+			int i = lo, j = hi;
+			while(i <= j) {
+				while(coord(i, axis) < pivot) i++;
+				while(coord(j, axis) > pivot) j--;
+				if(i <= j) swap(i++, j--);
+			}
+			if(k <= j) hi = j;
+			else if(k >= i) lo = i;
+			else return;
+		}
+	}
+
+	private void swap(int i, int j) {
+		SimpleStop s = stops[i]; stops[i] = stops[j]; stops[j] = s;
+		double t = xs[i]; xs[i] = xs[j]; xs[j] = t;
+		t = ys[i]; ys[i] = ys[j]; ys[j] = t;
+		t = zs[i]; zs[i] = zs[j]; zs[j] = t;
+	}
+
+	private void searchRadius(int lo, int hi, int depth, double [] q, double maxChord2, double maxChord, Hits hits) {
+		while(lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			double d2 = chord2(mid, q);
+			if(d2 <= maxChord2) hits.add(mid, d2);
+
+			double diff = q[depth % 3] - coord(mid, depth % 3);
+			boolean goLeft = diff - maxChord <= 0;
+			boolean goRight = diff + maxChord >= 0;
+			depth++;
+
+			if(goLeft && goRight) {
+				searchRadius(lo, mid, depth, q, maxChord2, maxChord, hits);
+				lo = mid + 1;
+			}
+			else if(goLeft) hi = mid;
+			else lo = mid + 1;
+		}
+	}
+
+	/** Growable list of (stop index, squared chord distance) pairs */
+	private class Hits {
+		int [] idx = new int[16];
+		double [] d2 = new double[16];
+		int count;
+
+		void add(int i, double dist2) {
+			if(count == idx.length) {
+				idx = Arrays.copyOf(idx, count * 2);
+				d2 = Arrays.copyOf(d2, count * 2);
+			}
+			idx[count] = i;
+			d2[count] = dist2;
+			count++;
+		}
+
+		ArrayList<SimpleStop> sortedStops() {
+			//Sort hit positions by distance; hits are usually few, so an index sort is plenty
+			Integer [] order = new Integer[count];
+			for(int i = 0; i < count; i++) order[i] = i;
+			Arrays.sort(order, (a, b) -> Double.compare(d2[a], d2[b]));
+
+			ArrayList<SimpleStop> result = new ArrayList<SimpleStop>(count);
+			for(int i = 0; i < count; i++) result.add(stops[idx[order[i]]]);
+			return(result);
+		}
+	}
+
+	/** Bounded max-heap holding the k best (stop index, squared chord distance) pairs seen so far */
+	private class NearestHits {
+		final int [] idx;
+		final double [] d2;
+		int count;
+
+		NearestHits(int k) {
+			idx = new int[k];
+			d2 = new double[k];
+		}
+
+		boolean isFull() { return count == idx.length; }
+		double worst() { return d2[0]; }
+
+		void offer(int i, double dist2) {
+			if(!isFull()) {
+				//Sift up
+				int c = count++;
+				while(c > 0) {
+					int parent = (c - 1) >>> 1;
+					if(d2[parent] >= dist2) break;
+					idx[c] = idx[parent]; d2[c] = d2[parent];
+					c = parent;
+				}
+				idx[c] = i; d2[c] = dist2;
+			} else if(dist2 < d2[0]) {
+				//Replace the root and sift down
+				int c = 0;
+				for(;;) {
+					int child = 2 * c + 1;
+					if(child >= count) break;
+					if(child + 1 < count && d2[child + 1] > d2[child]) child++;
+					if(d2[child] <= dist2) break;
+					idx[c] = idx[child]; d2[c] = d2[child];
+					c = child;
+				}
+				idx[c] = i; d2[c] = dist2;
+			}
+		}
+
+		ArrayList<SimpleStop> sortedStops() {
+			Integer [] order = new Integer[count];
+			for(int i = 0; i < count; i++) order[i] = i;
+			Arrays.sort(order, (a, b) -> Double.compare(d2[a], d2[b]));
+
+			ArrayList<SimpleStop> result = new ArrayList<SimpleStop>(count);
+			for(int i = 0; i < count; i++) result.add(stops[idx[order[i]]]);
+			return(result);
+		}
+	}
+
+	/** Min-heap of k-d subtrees ([lo, hi) at depth), ordered by a lower bound on their distance */
+	private static class NodeQueue {
+		int [] lo = new int[32], hi = new int[32], depth = new int[32];
+		double [] bound = new double[32];
+		int size;
+
+		double minBound() { return bound[0]; }
+
+		void push(int l, int h, int d, double b) {
+			if(l >= h) return;
+			if(size == lo.length) {
+				lo = Arrays.copyOf(lo, size * 2);
+				hi = Arrays.copyOf(hi, size * 2);
+				depth = Arrays.copyOf(depth, size * 2);
+				bound = Arrays.copyOf(bound, size * 2);
+			}
+			int c = size++;
+			while(c > 0) {
+				int parent = (c - 1) >>> 1;
+				if(bound[parent] <= b) break;
+				move(parent, c);
+				c = parent;
+			}
+			lo[c] = l; hi[c] = h; depth[c] = d; bound[c] = b;
+		}
+
+		void pop() {
+			size--;
+			if(size == 0) return;
+			int l = lo[size], h = hi[size], d = depth[size];
+			double b = bound[size];
+			int c = 0;
+			for(;;) {
+				int child = 2 * c + 1;
+				if(child >= size) break;
+				if(child + 1 < size && bound[child + 1] < bound[child]) child++;
+				if(bound[child] >= b) break;
+				move(child, c);
+				c = child;
+			}
+			lo[c] = l; hi[c] = h; depth[c] = d; bound[c] = b;
+		}
+
+		private void move(int from, int to) {
+			lo[to] = lo[from]; hi[to] = hi[from]; depth[to] = depth[from]; bound[to] = bound[from];
+		}
+	}
+}
@@ -0,0 +1,258 @@
+package com.yulaev.nodegtfsclient;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/** This class implements a compact, column-oriented table of transit stops, for keeping whole agencies'
+ * worth of stops resident without paying for a SimpleStop object (and ten String references) per stop.
+ * Latitudes and longitudes are stored in parallel int arrays, and every String field is dictionary
+ * encoded: each distinct value is stored once and rows hold an int code for it. Agency and route names
+ * repeat across nearly every row, and even intersection names repeat once per route serving the stop,
+ * so the dictionaries stay small.
+ *
+ * SimpleStop objects are only created on demand, by get() and toList(). Rows can be appended either
+ * from SimpleStops or straight from decoded text (see JSONStreamDecoder.decodeStopTable()), in which
+ * case a String is only ever allocated for the first occurrence of each distinct value.
+ *
+ * StopTable is not thread-safe; fill it from one thread, then share it read-only.
+ *
+ * @author iyulaev
+ */
+public class StopTable {
+
+	//Indices of the dictionary-encoded String columns, one per SimpleStop String field
+	static final int AGENCY = 0;
+	static final int ROUTE_NAME = 1;
+	static final int INTERSECTION = 2;
+	static final int DIR_NAME = 3;
+	static final int HEAD_SIGN = 4;
+	static final int DIRUSE = 5;
+	static final int DIRECTION = 6;
+	static final int TABLE = 7;
+	static final int IS_RT_STR = 8;
+	static final int STOPCODE = 9;
+	private static final int STRING_COLUMNS = 10;
+
+	private int size;
+	private int [] lats, lons;
+
+	//One dictionary per String column. codes[c] stays null until column c gets a non-null value.
+	private final StringDictionary [] dictionaries;
+	private final int [][] codes;
+
+	public StopTable() {
+		this(64);
+	}
+
+	/** @param initialCapacity Number of rows to allocate room for up front */
+	public StopTable(int initialCapacity) {
+		initialCapacity = Math.max(initialCapacity, 1);
+		lats = new int[initialCapacity];
+		lons = new int[initialCapacity];
+		dictionaries = new StringDictionary[STRING_COLUMNS];
+		for(int c = 0; c < STRING_COLUMNS; c++) dictionaries[c] = new StringDictionary();
+		codes = new int[STRING_COLUMNS][];
+	}
+
+	/** @return The number of rows (stops) in this table */
+	public int size() { return size; }
+
+	/** Appends a stop to this table.
+	 * @param stop SimpleStop to copy into the table
+	 * @return The row number of the new stop
+	 */
+	public int add(SimpleStop stop) {
+		int row = addRow(stop.lat, stop.lon);
+		setString(AGENCY, row, stop.agency);
+		setString(ROUTE_NAME, row, stop.routeName);
+		setString(INTERSECTION, row, stop.intersection);
+		setString(DIR_NAME, row, stop.dirName);
+		setString(HEAD_SIGN, row, stop.headSign);
+		setString(DIRUSE, row, stop.diruse);
+		setString(DIRECTION, row, stop.direction);
+		setString(TABLE, row, stop.table);
+		setString(IS_RT_STR, row, stop.isRTstr);
+		setString(STOPCODE, row, stop.stopcode);
+		return(row);
+	}
+
+	/** Appends a stop with only location, agency, route name and intersection set.
+	 * @return The row number of the new stop
+	 */
+	public int add(int lat, int lon, CharSequence agency, CharSequence routeName, CharSequence intersection) {
+		int row = addRow(lat, lon);
+		setString(AGENCY, row, agency);
+		setString(ROUTE_NAME, row, routeName);
+		setString(INTERSECTION, row, intersection);
+		return(row);
+	}
+
+	/** Appends every stop in stops to this table */
+	public void addAll(Iterable<SimpleStop> stops) {
+		for(SimpleStop stop : stops) add(stop);
+	}
+
+	public int getLat(int row) { checkRow(row); return lats[row]; }
+	public int getLon(int row) { checkRow(row); return lons[row]; }
+	public String getAgency(int row) { return getString(AGENCY, row); }
+	public String getRouteName(int row) { return getString(ROUTE_NAME, row); }
+	public String getIntersection(int row) { return getString(INTERSECTION, row); }
+
+	/** Returns a SimpleStop holding the data of the given row. A new object is created on every call;
+	 * changes to it are not written back to the table.
+	 * @param row Row number, between 0 and size()-1
+	 * @return SimpleStop view of the row
+	 */
+	public SimpleStop get(int row) {
+		checkRow(row);
+		SimpleStop stop = new SimpleStop();
+		stop.lat = lats[row];
+		stop.lon = lons[row];
+		stop.agency = getString(AGENCY, row);
+		stop.routeName = getString(ROUTE_NAME, row);
+		stop.intersection = getString(INTERSECTION, row);
+		stop.dirName = getString(DIR_NAME, row);
+		stop.headSign = getString(HEAD_SIGN, row);
+		stop.diruse = getString(DIRUSE, row);
+		stop.direction = getString(DIRECTION, row);
+		stop.table = getString(TABLE, row);
+		stop.isRTstr = getString(IS_RT_STR, row);
+		stop.stopcode = getString(STOPCODE, row);
+		return(stop);
+	}
+
+	/** @return A SimpleStop for every row of this table, in row order */
+	public ArrayList<SimpleStop> toList() {
+		ArrayList<SimpleStop> list = new ArrayList<SimpleStop>(size);
+		for(int row = 0; row < size; row++) list.add(get(row));
+		return(list);
+	}
+
+	/** Releases any spare capacity in the row arrays */
+	public void trimToSize() {
+		lats = Arrays.copyOf(lats, size);
+		lons = Arrays.copyOf(lons, size);
+		for(int c = 0; c < STRING_COLUMNS; c++) if(codes[c] != null) codes[c] = Arrays.copyOf(codes[c], size);
+	}
+
+	public String toString() {
+		return("{StopTable: rows=" + size + ", agencies=" + dictionaries[AGENCY].size() + ", routes="
+				+ dictionaries[ROUTE_NAME].size() + ", intersections=" + dictionaries[INTERSECTION].size() + "}");
+	}
+
+	void setLocation(int row, int lat, int lon) {
+		checkRow(row);
+		lats[row] = lat;
+		lons[row] = lon;
+	}
+
+	/** Drops every row from newSize on, e.g. rows appended from a response that then failed to decode */
+	void truncate(int newSize) {
+		if(newSize < 0 || newSize > size) throw new IndexOutOfBoundsException("Size " + newSize + " of " + size);
+		//Rows past size may be re-used by addRow(), which only sets the columns it is given
+		for(int c = 0; c < STRING_COLUMNS; c++) if(codes[c] != null) Arrays.fill(codes[c], newSize, size, -1);
+		size = newSize;
+	}
+
+	private int addRow(int lat, int lon) {
+		if(size == lats.length) {
+			int capacity = Math.max(size * 2, 16);
+			lats = Arrays.copyOf(lats, capacity);
+			lons = Arrays.copyOf(lons, capacity);
+			for(int c = 0; c < STRING_COLUMNS; c++) if(codes[c] != null) codes[c] = grow(codes[c], capacity);
+		}
+		lats[size] = lat;
+		lons[size] = lon;
+		return(size++);
+	}
+
+	String getString(int column, int row) {
+		checkRow(row);
+		int [] col = codes[column];
+		if(col == null || col[row] < 0) return(null);
+		return(dictionaries[column].get(col[row]));
+	}
+
+	void setString(int column, int row, CharSequence value) {
+		int [] col = codes[column];
+		if(value == null) {
+			if(col != null) col[row] = -1;
+			return;
+		}
+		if(col == null) {
+			col = new int[lats.length];
+			Arrays.fill(col, -1);
+			codes[column] = col;
+		}
+		col[row] = dictionaries[column].encode(value);
+	}
+
+	private void checkRow(int row) {
+		if(row < 0 || row >= size) throw new IndexOutOfBoundsException("Row " + row + " of " + size);
+	}
+
+	private static int [] grow(int [] col, int capacity) {
+		int oldLength = col.length;
+		col = Arrays.copyOf(col, capacity);
+		Arrays.fill(col, oldLength, capacity, -1);
+		return(col);
+	}
+
+	/** Maps distinct Strings to dense int codes and back. Lookups take any CharSequence and are done
+	 * with an open-addressing hash table over the stored values, so a String is only allocated the first
+	 * time a value is seen.
+	 */
+	static class StringDictionary {
+		private final ArrayList<String> values = new ArrayList<String>();
+		private int [] hashes = new int[16];
+		//Slot contents are code + 1, so that 0 marks an empty slot
+		private int [] slots = new int[16];
+
+		int size() { return values.size(); }
+
+		String get(int code) { return values.get(code); }
+
+		int encode(CharSequence value) {
+			int hash = hash(value);
+			int mask = slots.length - 1;
+			for(int i = hash & mask; ; i = (i + 1) & mask) {
+				int slot = slots[i];
+				if(slot == 0) break;
+				if(hashes[i] == hash && contentEquals(values.get(slot - 1), value)) return(slot - 1);
+			}
+
+			int code = values.size();
+			values.add(value.toString());
+			if(values.size() * 2 > slots.length) rehash(slots.length * 2);
+			insert(hash, code);
+			return(code);
+		}
+
+		private void insert(int hash, int code) {
+			int mask = slots.length - 1;
+			int i = hash & mask;
+			while(slots[i] != 0) i = (i + 1) & mask;
+			slots[i] = code + 1;
+			hashes[i] = hash;
+		}
+
+		private void rehash(int capacity) {
+			int [] oldSlots = slots, oldHashes = hashes;
+			slots = new int[capacity];
+			hashes = new int[capacity];
+			for(int i = 0; i < oldSlots.length; i++) if(oldSlots[i] != 0) insert(oldHashes[i], oldSlots[i] - 1);
+		}
+
+		private static int hash(CharSequence s) {
+			int h = 0;
+			for(int i = 0; i < s.length(); i++) h = 31 * h + s.charAt(i);
+			return(h ^ (h >>> 16));
+		}
+
+		private static boolean contentEquals(String a, CharSequence b) {
+			if(a.length() != b.length()) return false;
+			for(int i = 0; i < a.length(); i++) if(a.charAt(i) != b.charAt(i)) return false;
+			return true;
+		}
+	}
+}
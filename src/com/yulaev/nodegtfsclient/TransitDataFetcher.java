@@ -6,22 +6,36 @@
  */
 
 package com.yulaev.nodegtfsclient;
-import java.io.BufferedReader;
+import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.Reader;
-import java.net.MalformedURLException;
-import java.net.URL;
-import java.nio.charset.Charset;
+import java.io.StringReader;
+import java.lang.reflect.Method;
 import java.util.ArrayList;
-import java.util.Calendar;
-import java.util.Date;
-import java.util.GregorianCalendar;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import javax.management.JMException;
 
-import org.json.JSONArray;
 import org.json.JSONException;
-import org.json.JSONObject;
 
 public class TransitDataFetcher {
 	
@@ -30,169 +44,345 @@ public class TransitDataFetcher {
 	private static final boolean TEST_STOP_BY_ROUTE = false;
 	private static final boolean TEST_ROUTE_BY_LOC = false;
 	private static final boolean TEST_ROUTE_STOP_TIMES = true;
+	private static final boolean TEST_OFFLINE = true; //checks that don't need a node-gtfs server
 	
 	//Used to put together URLs pointing to API endpoints on the node-gtfs server
 	private NodeGtfsUrlMaker urlMakr;
 	
+	//Used to actually make the HTTP requests to the node-gtfs server
+	private HttpTransport transport;
+	
+	//When talking to several replicas, picks the one each request goes to (and urlMakr makes bare paths)
+	private final ReplicaBalancer replicas;
+	
+	//Cache of decoded responses to static queries; null means caching is disabled
+	private volatile ResponseCache responseCache;
+	
+	//When non-null, location-based stop queries are answered from this index rather than the server
+	private volatile StopIndex localStops;
+	
+	//When non-null, location-based stop queries that go to the server are fetched as whole tiles
+	private volatile LocationTiles stopTiles;
+	
+	//Persisted agency data that route lists and stops by route are served from, keyed by agency
+	private final ConcurrentHashMap<String, AgencySnapshot> snapshots = new ConcurrentHashMap<String, AgencySnapshot>();
+	//Files and maximum ages of the snapshots loaded by warmStart(), so they can be refreshed once they age
+	private final ConcurrentHashMap<String, SnapshotSource> snapshotSources = new ConcurrentHashMap<String, SnapshotSource>();
+	//How long after a failed snapshot refresh the next one may start
+	public static final long SNAPSHOT_RETRY_MS = 60 * 1000L;
+	
+	//Limits for fetchStopListsByRoutes()
+	public static final int DEFAULT_BATCH_PARALLELISM = 8;
+	public static final long DEFAULT_BATCH_TIMEOUT_MS = 30 * 1000L;
+	public static final long DEFAULT_BATCH_DEADLINE_MS = 2 * 60 * 1000L;
+	private volatile int batchParallelism = DEFAULT_BATCH_PARALLELISM;
+	private volatile long batchTimeoutMs = DEFAULT_BATCH_TIMEOUT_MS;
+	private volatile long batchDeadlineMs = DEFAULT_BATCH_DEADLINE_MS;
+	
+	//Per-query-type request counters and latency histograms
+	private final MetricsRegistry metrics = new MetricsRegistry();
+	
+	//Receives diagnostic events; never null
+	private volatile FetchListener listener = FetchListener.NO_OP;
+	
+	//Response decoders that report skipped elements to listener
+	private final HttpTransport.ResponseHandler<ArrayList<Route>> routeListHandler = new HttpTransport.ResponseHandler<ArrayList<Route>>() {
+		public ArrayList<Route> handle(Reader body) throws JSONException { return(JSONStreamDecoder.decodeRouteList(body, listener)); }
+	};
+	private final HttpTransport.ResponseHandler<ArrayList<SimpleStop>> stopListHandler = new HttpTransport.ResponseHandler<ArrayList<SimpleStop>>() {
+		public ArrayList<SimpleStop> handle(Reader body) throws JSONException { return(JSONStreamDecoder.decodeStopList(body, listener)); }
+	};
+	private final HttpTransport.ResponseHandler<ArrayList<Prediction>> predictionListHandler = new HttpTransport.ResponseHandler<ArrayList<Prediction>>() {
+		public ArrayList<Prediction> handle(Reader body) throws JSONException { return(JSONStreamDecoder.decodePredictionList(body, listener)); }
+	};
+	
+	//Coalesces concurrent requests for the same URL
+	private final SingleFlight inFlight = new SingleFlight();
+	
+	//Executor that the *Async methods run on; null means use getDefaultAsyncExecutor()
+	private volatile Executor asyncExecutor;
+	private static Executor defaultAsyncExecutor;
+	
+	/** Creates a TransitDataFetcher that talks to the node-gtfs server at domain, using the shared
+	 * default HttpTransport (see HttpTransport.getDefault()).
+	 * @param domain URL of the node-gtfs server, e.g. http://localhost:8081
+	 */
 	public TransitDataFetcher(String domain) {
+		this(domain, HttpTransport.getDefault());
+	}
+	
+	/** Creates a TransitDataFetcher that talks to the node-gtfs server at domain using the given
+	 * HttpTransport, which may be shared between fetchers to pool connections.
+	 * @param domain URL of the node-gtfs server, e.g. http://localhost:8081
+	 * @param transport HttpTransport to make requests with
+	 */
+	public TransitDataFetcher(String domain, HttpTransport transport) {
 		this.urlMakr = new NodeGtfsUrlMaker(domain);
-		
+		this.transport = transport;
+		this.replicas = null;
+		this.responseCache = new ResponseCache();
 	}
 	
-	/** This method will return the JSON-formatted string residing at URL "urlString"
+	/** Creates a TransitDataFetcher that spreads its requests over several replicas of a node-gtfs 
+	 * server, using the shared default HttpTransport and a ReplicaBalancer with the default settings.
+	 * @param domains URLs of the node-gtfs replicas, e.g. http://10.0.0.1:8081
+	 */
+	public TransitDataFetcher(List<String> domains) {
+		this(new ReplicaBalancer(domains), HttpTransport.getDefault());
+	}
+	
+	/** Creates a TransitDataFetcher that spreads its requests over several replicas of a node-gtfs 
+	 * server, sending each to the replica picked by replicas. Responses are cached (and concurrent 
+	 * requests coalesced) by path, so they are shared whichever replica served them.
+	 * @param replicas ReplicaBalancer holding the node-gtfs replicas
+	 * @param transport HttpTransport to make requests with
+	 */
+	public TransitDataFetcher(ReplicaBalancer replicas, HttpTransport transport) {
+		this.urlMakr = new NodeGtfsUrlMaker("");
+		this.transport = transport;
+		this.replicas = replicas;
+		this.responseCache = new ResponseCache();
+	}
+	
+	/** @return The ReplicaBalancer requests are spread with, or null if this fetcher talks to one server */
+	public ReplicaBalancer getReplicaBalancer() {
+		return(replicas);
+	}
+	
+	/** Sets the cache that responses to static queries (routes by agency, stops by route) are kept in.
+	 * By default every TransitDataFetcher has its own ResponseCache with the default settings.
+	 * @param cache ResponseCache to use, or null to disable caching
+	 */
+	public void setResponseCache(ResponseCache cache) {
+		cacheStopTiles(cache, stopTiles);
+		this.responseCache = cache;
+	}
+	
+	/** @return The ResponseCache used by this fetcher, or null if caching is disabled */
+	public ResponseCache getResponseCache() {
+		return(responseCache);
+	}
+	
+	/** This method fetches the URL "urlString" and decodes the response, as it streams in, into a list of 
+	 * objects using handler. Errors are reported and turned into an empty list; see loadList().
+	 * @param queryType The NodeGtfsUrlMaker.QUERY_* type that urlString was built for
+	 * @param agency The agency the query is about, or null (only used to label JFR events)
 	 * @param urlString String representing URL to fetch from
-	 * @return String located at the URL represeted by urlString
+	 * @param handler One of the JSONStreamDecoder handlers, that decodes the response body
+	 * @return The decoded list, or an empty list if the URL couldn't be fetched or decoded. The list 
+	 * belongs to the caller, but the objects in it may be shared with the cache and with other callers.
 	 */
-	private static String jsonStringFromURLString(String urlString) {
-		URL targetURL;
-		try { targetURL = new URL(urlString); } 
-		catch (MalformedURLException e) { System.err.println(e); return(null);	}
-		
-		InputStream is;
-		try { is = targetURL.openStream(); }
-		catch (IOException e) { System.err.println(e); return(null); }
+	private <T> ArrayList<T> fetchList(int queryType, String agency, String urlString, HttpTransport.ResponseHandler<ArrayList<T>> handler) {
+		try { return(loadList(queryType, agency, urlString, handler)); }
+		catch (InterruptedException e) { Thread.currentThread().interrupt(); listener.onRequestFailed(queryType, urlString, e); }
+		catch (Exception e) { listener.onRequestFailed(queryType, urlString, e); }
+		return(new ArrayList<T>());
+	}
+	
+	/** This method fetches the URL "urlString" and decodes the response, as it streams in, into a list of 
+	 * objects using handler. Responses to cacheable query types are served from, and added to, the 
+	 * ResponseCache; a stale cached response is served as-is while one background request (on the async
+	 * executor) replaces it. Requests for responses the cache still holds are conditional, and when the
+	 * server answers 304 Not Modified the cached objects are kept without decoding anything. Concurrent
+	 * calls for the same URL are coalesced into a single request, whose result is handed to every caller.
+	 * @param queryType The NodeGtfsUrlMaker.QUERY_* type that urlString was built for
+	 * @param agency The agency the query is about, or null (only used to label JFR events)
+	 * @param urlString String representing URL to fetch from
+	 * @param handler One of the JSONStreamDecoder handlers, that decodes the response body
+	 * @return The decoded list. The list belongs to the caller, but the objects in it may be shared with 
+	 * the cache and with other callers.
+	 * @throws Exception if the URL couldn't be fetched or decoded
+	 */
+	private <T> ArrayList<T> loadList(final int queryType, final String agency, final String urlString, 
+			final HttpTransport.ResponseHandler<ArrayList<T>> handler) throws Exception {
+		final ResponseCache cache = cacheFor(queryType);
+		if(cache != null) {
+			ArrayList<T> cached = cache.get(urlString);
+			if(cached != null) {
+				EndpointMetrics endpoint = metrics.forQuery(queryType);
+				if(endpoint != null) endpoint.recordCacheHit();
+				if(cache.claimRefresh(urlString)) refreshInBackground(queryType, agency, urlString, handler, cache);
+				return(new ArrayList<T>(cached));
+			}
+		}
 		
+		return(new ArrayList<T>(fetchShared(queryType, agency, urlString, handler, cache)));
+	}
+	
+	/** Same as loadList(), but never answers from the ResponseCache: the server is always asked, with a 
+	 * conditional request if the cache holds a response, and the cache is updated with the answer.
+	 */
+	private <T> ArrayList<T> revalidateList(int queryType, String agency, String urlString, 
+			HttpTransport.ResponseHandler<ArrayList<T>> handler) throws Exception {
+		return(new ArrayList<T>(fetchShared(queryType, agency, urlString, handler, cacheFor(queryType))));
+	}
+	
+	/** @return The ResponseCache to use for queryType, or null if there is none or it doesn't store 
+	 * queryType (such queries aren't looked up, so they don't count as misses)
+	 */
+	private ResponseCache cacheFor(int queryType) {
+		ResponseCache cache = responseCache;
+		return((cache != null && cache.getTtl(queryType) > 0) ? cache : null);
+	}
+	
+	/** Fetches urlString (coalesced with any other request for it in flight) and caches the response. If
+	 * the cache holds a response to urlString with validators, the request is conditional on it.
+	 * @return The decoded (or revalidated) list, shared with the cache and other callers
+	 */
+	private <T> ArrayList<T> fetchShared(final int queryType, final String agency, final String urlString, 
+			final HttpTransport.ResponseHandler<ArrayList<T>> handler, final ResponseCache cache) throws Exception {
+		return(inFlight.execute(urlString, new Callable<ArrayList<T>>() {
+			public ArrayList<T> call() throws IOException, JSONException {
+				HttpTransport.Exchange exchange = new HttpTransport.Exchange(NodeGtfsUrlMaker.getQueryName(queryType), agency);
+				ResponseCache.StoredResponse stored = (cache == null) ? null : cache.getStored(urlString);
+				if(stored != null) exchange.setValidators(stored.getETag(), stored.getLastModified());
+				
+				ArrayList<T> result = null;
+				try { 
+					result = send(urlString, traced(handler, exchange, urlString), exchange); 
+					if(exchange.isNotModified()) result = stored.getValue();
+				}
+				finally { recordRequest(queryType, exchange, result == null ? -1 : result.size()); }
+				listener.onResponse(queryType, urlString, result.size(), exchange);
+				
+				if(cache != null) {
+					//A 304 may leave out validators that haven't changed
+					String etag = exchange.getETag(), lastModified = exchange.getLastModified();
+					if(exchange.isNotModified()) {
+						if(etag == null) etag = stored.getETag();
+						if(lastModified == null) lastModified = stored.getLastModified();
+					}
+					cache.put(queryType, urlString, result, etag, lastModified);
+				}
+				return(result);
+			}
+		}));
+	}
+	
+	/** Makes a request with transport: to urlString itself, or with several replicas, to urlString (then 
+	 * a bare path) on the replica the ReplicaBalancer picks.
+	 */
+	private <T> T send(String urlString, HttpTransport.ResponseHandler<T> handler, HttpTransport.Exchange exchange) 
+			throws IOException, JSONException {
+		if(replicas == null) return(transport.fetch(urlString, handler, exchange));
+		return(replicas.fetch(transport, urlString, handler, exchange));
+	}
+	
+	/** Replaces the stale cached response to urlString on the async executor. If that fails the stale 
+	 * response stays in the cache, and the next caller to find it tries again.
+	 */
+	private <T> void refreshInBackground(final int queryType, final String agency, final String urlString, 
+			final HttpTransport.ResponseHandler<ArrayList<T>> handler, final ResponseCache cache) {
 		try {
-		  BufferedReader rd = new BufferedReader(new InputStreamReader(is, Charset.forName("UTF-8")));
-		  String jsonText = readAll(rd);
-		  is.close();
-		  return(jsonText);
-		} catch (Exception e) { System.err.println(e); return(null); } 		
+			getAsyncExecutor().execute(new Runnable() {
+				public void run() {
+					try { fetchShared(queryType, agency, urlString, handler, cache); }
+					catch (Exception e) {
+						cache.refreshFailed(urlString);
+						if(e instanceof InterruptedException) Thread.currentThread().interrupt();
+						listener.onRequestFailed(queryType, urlString, e);
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			cache.refreshFailed(urlString);
+		}
 	}
 	
-	//This method lifted from http://stackoverflow.com/questions/4308554/simplest-way-to-read-json-from-a-url-in-java
-	/** This method returns the String representation that can be extracted from the Reader 'rd'
-	 * 
-	 * @param rd Reader to extract String from
-	 * @return String extracted from rd.
-	 * @throws IOException
+	/** Builds a URL with builder, emitting a FetchEvents.UrlBuild event for it */
+	private static String buildUrl(int queryType, String agency, Supplier<String> builder) {
+		FetchEvents.UrlBuild event = new FetchEvents.UrlBuild();
+		event.begin();
+		String url = builder.get();
+		event.end();
+		if(event.shouldCommit()) { event.describe(queryType, agency, url); event.commit(); }
+		return(url);
+	}
+	
+	/** Wraps a list handler so that it emits a FetchEvents.Decode event covering the body */
+	private static <T> HttpTransport.ResponseHandler<ArrayList<T>> traced(final HttpTransport.ResponseHandler<ArrayList<T>> handler,
+			final HttpTransport.Exchange exchange, final String urlString) {
+		return(new HttpTransport.ResponseHandler<ArrayList<T>>() {
+			public ArrayList<T> handle(Reader body) throws IOException, JSONException {
+				FetchEvents.Decode decode = new FetchEvents.Decode();
+				decode.begin();
+				ArrayList<T> result = handler.handle(body);
+				decode.end();
+				if(decode.shouldCommit()) {
+					decode.describe(exchange, urlString);
+					decode.bytes = exchange.getBytesReceived();
+					decode.objects = result.size();
+					decode.commit();
+				}
+				return(result);
+			}
+		});
+	}
+	
+	/** Records a request in the metrics of queryType; objectCount is -1 if it failed */
+	private void recordRequest(int queryType, HttpTransport.Exchange exchange, int objectCount) {
+		EndpointMetrics endpoint = metrics.forQuery(queryType);
+		if(endpoint != null) endpoint.recordRequest(exchange, objectCount);
+	}
+	
+	/** Sets the listener that receives this fetcher's diagnostic events (decoded responses with their 
+	 * timings, failed requests, skipped elements). 
+	 * @param listener The listener, or null to stop reporting events (the default)
 	 */
-	private static String readAll(Reader rd) throws IOException {
-	    StringBuilder sb = new StringBuilder();
-	    int cp;
-	    while ((cp = rd.read()) != -1) {
-	      sb.append((char) cp);
-	    }
-	    return sb.toString();
+	public void setFetchListener(FetchListener listener) {
+		this.listener = (listener == null) ? FetchListener.NO_OP : listener;
+	}
+	
+	/** @return The listener receiving this fetcher's diagnostic events (FetchListener.NO_OP if none) */
+	public FetchListener getFetchListener() {
+		return(listener);
+	}
+	
+	/** @return The per-query-type request metrics of this fetcher */
+	public MetricsRegistry getMetrics() {
+		return(metrics);
+	}
+	
+	/** Publishes this fetcher's request metrics as MBeans on the platform MBeanServer (see MetricsRegistry).
+	 * @param name Name to publish the metrics under, unique among fetchers in this JVM
+	 * @throws JMException if the MBeans can't be registered
+	 */
+	public void registerMBeans(String name) throws JMException {
+		metrics.register(name, listener);
 	}
 	
 	/**
 	 * Converts a JSON-formatted string represeting GTFS routes into a set of Route Objects.
 	 * @param jsonString String representing a list of GTFS routes (JSON formatted)
+	 * @param listener Listener told about skipped routes, or a response that can't be decoded at all
 	 * @return ArrayList of Route objects
 	 */
-	private static ArrayList<Route> jsonStringToRouteList(String jsonString) {
-		//Convert the JSON formatted string to JSONArray type
-		JSONArray jsonRouteObjectArray = null;
-		try { jsonRouteObjectArray = new JSONArray(jsonString); }
-		catch (JSONException e) { System.err.println(e); }
-		
-		//Convert JSONArray to ArrayList of Route objects
-		ArrayList <Route> routeList = new ArrayList<Route>();
-		if(jsonRouteObjectArray != null) {
-			System.out.println("Found " + jsonRouteObjectArray.length() + " JSON Objects in the Array");
-			for(int i = 0; i < jsonRouteObjectArray.length(); i++) {
-				Route newRoute;
-				
-				try { newRoute = new Route(jsonRouteObjectArray.getJSONObject(i)); }
-				catch (JSONException e) { System.err.println(e); newRoute = null; }
-				
-				if(newRoute != null) routeList.add(newRoute);
-			}
-		} else {
-			System.out.println("No objects in jsonRouteObjectArray! Terminating...");
-			return routeList;
-		}
-		
-		//Remove invalid entries
-		for(int i = 0; i < routeList.size(); i++) if(routeList.get(i).isValid()) routeList.remove(i);
-		
-		return(routeList);	
+	static ArrayList<Route> jsonStringToRouteList(String jsonString, FetchListener listener) {
+		try { return(JSONStreamDecoder.decodeRouteList(new StringReader(jsonString), listener)); }
+		catch (JSONException e) { listener.onError("Couldn't decode route list", e); return(new ArrayList<Route>()); }
 	}
 
 	/**
 	 * Converts a JSON-formatted string representing GTFS stops into a set of SimpleStop Objects.
 	 * @param jsonString String representing a list of GTFS stops (JSON formatted)
+	 * @param listener Listener told about skipped stops, or a response that can't be decoded at all
 	 * @return ArrayList of SimpleStop objects
 	 */
-	private static ArrayList<SimpleStop> jsonStringToStopList(String jsonString) {
-		//Convert the JSON formatted string to JSONArray type
-		JSONArray jsonSimpleStopObjectArray = null;
-		try { jsonSimpleStopObjectArray = new JSONArray(jsonString); }
-		catch (JSONException e) { System.err.println(e); }
-		
-		//Convert JSONArray to ArrayList of Route objects
-		ArrayList <SimpleStop> stopList = new ArrayList<SimpleStop>();
-		if(jsonSimpleStopObjectArray != null) {
-			System.out.println("Found " + jsonSimpleStopObjectArray.length() + " JSON Objects in the Array");
-			for(int i = 0; i < jsonSimpleStopObjectArray.length(); i++) {
-				SimpleStop newStop;
-				
-				try { newStop = JSONSimpleStopGenerator.jsonToSimpleStop(jsonSimpleStopObjectArray.getJSONObject(i)); }
-				catch (JSONException e) { System.err.println(e); newStop = null; }
-				
-				if(newStop != null) stopList.add(newStop);
-			}
-		} else {
-			System.out.println("No objects in jsonRouteObjectArray! Terminating...");
-			return stopList;
-		}
-		
-		//Remove invalid entries (not implemented for SimpleStops yet)
-		//for(int i = 0; i < stopList.size(); i++) if(stopList.get(i).isValid()) stopList.remove(i);
-		
-		return(stopList);	
+	static ArrayList<SimpleStop> jsonStringToStopList(String jsonString, FetchListener listener) {
+		try { return(JSONStreamDecoder.decodeStopList(new StringReader(jsonString), listener)); }
+		catch (JSONException e) { listener.onError("Couldn't decode stop list", e); return(new ArrayList<SimpleStop>()); }
 	}
 	
 	/** Converts a JSON-formatted string representing times to a Predictions object, or a set of
 	 * predictions objects.
-	 * TODO: Doesn't handle multiple directions in the same list correctly.
 	 * 
 	 * @param jsonString String representing a list or multiple lists of transit stop times (JSON formatted)
-	 * @return ArrayList of Predictions objects, one per direction (assumes that all times correspond to the same stop)
+	 * @param listener Listener told about skipped stop times, or a response that can't be decoded at all
+	 * @return ArrayList of Predictions objects, one per list of times (assumes that all times correspond to the same stop)
 	 */
-	private static ArrayList<Prediction> jsonStringToPredictionList( String jsonString ) {
-		JSONArray jsonSimpleStopObjectArray = null;
-		try { jsonSimpleStopObjectArray = new JSONArray(jsonString); }
-		catch (JSONException e) { System.err.println(e); }
-		
-		//Convert JSONArray to ArrayList of Route objects
-		ArrayList <Prediction> predictionList = new ArrayList<Prediction>();
-		if(jsonSimpleStopObjectArray != null) {
-			int [] predSecs = new int[jsonSimpleStopObjectArray.length()];
-			for(int i = 0; i < jsonSimpleStopObjectArray.length(); i++) {
-				String time;
-				
-				try { time = (String) jsonSimpleStopObjectArray.getString(i); }
-				catch (JSONException e) { System.err.println(e); time = null; }
-				
-				if(time != null) {
-					time = time.replaceAll("\\s+", ""); //remove whitespace 
-					String [] components = time.split(":"); //split by colons
-					
-					try {
-						//We assume that the returned times are in the same timezone that we are in
-						//TODO: doesn't deal with midnight roll-over - how do we deal with this?
-						Calendar cal = new GregorianCalendar();
-						int hour = Integer.parseInt(components[0]) - cal.get(Calendar.HOUR_OF_DAY);
-						int minute = Integer.parseInt(components[1]) - cal.get(Calendar.MINUTE);
-						int second = Integer.parseInt(components[2]) - cal.get(Calendar.SECOND);
-						predSecs[i] = hour * 60 * 60 + minute * 60 + second;
-					} catch (NumberFormatException e) { predSecs[i] = 0; }
-				}
-			}
-			
-			predictionList.add(new Prediction(predSecs, false));
-			
-		} else {
-			System.out.println("No objects in jsonRouteObjectArray! Terminating...");
-			return predictionList;
-		}
-
-		//Remove invalid entries (not implemented for SimpleStops yet)
-		//for(int i = 0; i < stopList.size(); i++) if(stopList.get(i).isValid()) stopList.remove(i);
-		
-		return(predictionList);
+	static ArrayList<Prediction> jsonStringToPredictionList( String jsonString, FetchListener listener ) {
+		try { return(JSONStreamDecoder.decodePredictionList(new StringReader(jsonString), listener)); }
+		catch (JSONException e) { listener.onError("Couldn't decode prediction list", e); return(new ArrayList<Prediction>()); }
 	}
 	
 	/** This method fetches a list of Routes based on latitude and longitude. Overloaded versions exist 
@@ -204,27 +394,22 @@ public class TransitDataFetcher {
 	 * @return An ArrayList of Route objects 
 	 */
 	public ArrayList<Route> fetchRouteListByLatLon(int lat, int lon, double radius) {
-		String urlStr = urlMakr.getRoutesByLoc(lat, lon, radius); //get URL for API endpoint
-		String jsonRouteList = jsonStringFromURLString(urlStr); //get JSON-formatted route list
-		return(jsonStringToRouteList(jsonRouteList)); //Convert to list of routes
+		String urlStr = buildUrl(NodeGtfsUrlMaker.QUERY_ROUTES_BY_LOC, null, () -> urlMakr.getRoutesByLoc(lat, lon, radius)); //get URL for API endpoint
+		return(fetchList(NodeGtfsUrlMaker.QUERY_ROUTES_BY_LOC, null, urlStr, routeListHandler)); //fetch and convert to list of routes
 	}
 	
 	public ArrayList<Route> fetchRouteListByLatLon(int lat, int lon) {
-		String urlStr = urlMakr.getRoutesByLoc(lat, lon); //get URL for API endpoint
-		String jsonRouteList = jsonStringFromURLString(urlStr); //get JSON-formatted route list
-		return(jsonStringToRouteList(jsonRouteList)); //Convert to list of routes
+		String urlStr = buildUrl(NodeGtfsUrlMaker.QUERY_ROUTES_BY_LOC, null, () -> urlMakr.getRoutesByLoc(lat, lon)); //get URL for API endpoint
+		return(fetchList(NodeGtfsUrlMaker.QUERY_ROUTES_BY_LOC, null, urlStr, routeListHandler)); //fetch and convert to list of routes
 	}
 	public ArrayList<Route> fetchRouteListByLatLon(double lat, double lon, double radius) {
-		String urlStr = urlMakr.getRoutesByLoc(lat, lon, radius); //get URL for API endpoint
-		String jsonRouteList = jsonStringFromURLString(urlStr); //get JSON-formatted route list
-		return(jsonStringToRouteList(jsonRouteList)); //Convert to list of routes
+		String urlStr = buildUrl(NodeGtfsUrlMaker.QUERY_ROUTES_BY_LOC, null, () -> urlMakr.getRoutesByLoc(lat, lon, radius)); //get URL for API endpoint
+		return(fetchList(NodeGtfsUrlMaker.QUERY_ROUTES_BY_LOC, null, urlStr, routeListHandler)); //fetch and convert to list of routes
 	}
 	
 	public ArrayList<Route> fetchRouteListByLatLon(double lat, double lon) {
-		String urlStr = urlMakr.getRoutesByLoc(lat, lon); //get URL for API endpoint
-		System.out.println("URL was " + urlStr);
-		String jsonRouteList = jsonStringFromURLString(urlStr); //get JSON-formatted route list
-		return(jsonStringToRouteList(jsonRouteList)); //Convert to list of routes
+		String urlStr = buildUrl(NodeGtfsUrlMaker.QUERY_ROUTES_BY_LOC, null, () -> urlMakr.getRoutesByLoc(lat, lon)); //get URL for API endpoint
+		return(fetchList(NodeGtfsUrlMaker.QUERY_ROUTES_BY_LOC, null, urlStr, routeListHandler)); //fetch and convert to list of routes
 	}
 	
 	
@@ -234,31 +419,309 @@ public class TransitDataFetcher {
 	 * @param lon The longitude (in microdegrees) to fetch a list of stops around
 	 * @param radius The radius (in miles) within which to search for stops 
 	 * 		for (default: NodeGtfsUrlMaker.DEFAULT_SEARCH_RADIUS_STOPS)
-	 * @return A List of SimpleStop objects within radius miles of (lat, lon)
+	 * @return A List of SimpleStop objects within radius miles of (lat, lon). If a local StopIndex has 
+	 * been loaded (see loadLocalStopIndex()) the query is answered from it, nearest stop first, without 
+	 * contacting the server. If tiling is enabled (see setStopTiling()) the query is answered, nearest 
+	 * stop first, from the tiles covering it.
 	*/
 	public ArrayList<SimpleStop> fetchStopListByLatLon(int lat, int lon, double radius) {
-		String urlStr = urlMakr.getStopsByLoc(lat, lon, radius); //get URL for API endpoint
-		String jsonStopList = jsonStringFromURLString(urlStr); //get JSON-formatted route list
-		return(jsonStringToStopList(jsonStopList)); //Convert to list of routes
+		StopIndex index = localStops;
+		if(index != null) return(index.withinRadius(lat, lon, radius));
+		
+		LocationTiles tiles = stopTiles;
+		if(tiles != null) {
+			ArrayList<SimpleStop> stops = fetchStopListByTiles(tiles, lat, lon, radius);
+			if(stops != null) return(stops);
+		}
+		
+		String urlStr = buildUrl(NodeGtfsUrlMaker.QUERY_STOPS_BY_LOC, null, () -> urlMakr.getStopsByLoc(lat, lon, radius)); //get URL for API endpoint
+		return(fetchList(NodeGtfsUrlMaker.QUERY_STOPS_BY_LOC, null, urlStr, stopListHandler)); //fetch and convert to list of stops
 	}
 	
 	public ArrayList<SimpleStop> fetchStopListByLatLon(int lat, int lon) {
-		String urlStr = urlMakr.getStopsByLoc(lat, lon); //get URL for API endpoint
-		String jsonStopList = jsonStringFromURLString(urlStr); //get JSON-formatted route list
-		return(jsonStringToStopList(jsonStopList)); //Convert to list of routes
+		return(fetchStopListByLatLon(lat, lon, urlMakr.DEFAULT_SEARCH_RADIUS_STOPS));
+	}
+	
+	/** This method returns the k stops closest to (lat, lon), optionally only counting stops of one agency.
+	 * The query is answered from the local StopIndex (see loadLocalStopIndex()) with a best-first search.
+	 * If no local index has been loaded, it falls back to fetching the stops within the default search 
+	 * radius from the server and picking the closest of those.
+	 * @param lat The latitude (in microdegrees) of the query point
+	 * @param lon The longitude (in microdegrees) of the query point
+	 * @param k The maximum number of stops to return
+	 * @param agency Agency key to restrict the results to, or null for stops of any agency
+	 * @return Up to k SimpleStops, nearest first
+	 */
+	public ArrayList<SimpleStop> fetchNearestStops(int lat, int lon, int k, String agency) {
+		StopIndex index = localStops;
+		if(index == null) {
+			ArrayList<SimpleStop> candidates = new ArrayList<SimpleStop>();
+			for(SimpleStop stop : fetchStopListByLatLon(lat, lon)) 
+				if(agency == null || agency.equals(stop.agency)) candidates.add(stop);
+			index = new StopIndex(candidates);
+		}
+		return(index.nearest(lat, lon, k, agency));
+	}
+	
+	public ArrayList<SimpleStop> fetchNearestStops(int lat, int lon, int k) {
+		return(fetchNearestStops(lat, lon, k, null));
+	}
+	
+	/** This method switches location-based stop queries into local mode: it downloads every stop of the
+	 * given agencies (via their route lists) once, builds a StopIndex over them and from then on answers
+	 * fetchStopListByLatLon() from that index instead of the server. Call again to refresh the data, or
+	 * setLocalStopIndex(null) to go back to querying the server.
+	 * @param agencies The agencies whose stops should be indexed
+	 * @return The newly built StopIndex
+	 */
+	public StopIndex loadLocalStopIndex(String... agencies) {
+		//A stop served by several routes shows up once per route
+		LinkedHashMap<String, SimpleStop> uniqueStops = new LinkedHashMap<String, SimpleStop>();
+		for(String agency : agencies) {
+			ArrayList<String> routeIds = new ArrayList<String>();
+			for(Route route : fetchRouteList(agency)) routeIds.add(route.getRouteId());
+			
+			for(List<SimpleStop> routeStops : fetchStopListsByRoutes(agency, routeIds).values()) {
+				for(SimpleStop stop : routeStops) {
+					String key = stop.agency + "|" + stop.lat + "|" + stop.lon + "|" + stop.intersection;
+					if(!uniqueStops.containsKey(key)) uniqueStops.put(key, stop);
+				}
+			}
+		}
+		
+		StopIndex index = new StopIndex(uniqueStops.values());
+		this.localStops = index;
+		return(index);
+	}
+	
+	/** This method downloads an agency's routes and the stops on each route and saves them to a
+	 * memory-mapped AgencySnapshot file, which warmStart() can later load in place of the downloads.
+	 * @param agency The agency to save
+	 * @param file The snapshot file to write (replaced atomically if it already exists)
+	 * Nothing is written unless the route list and the stops of every route were fetched: if the server
+	 * can't be reached, a snapshot missing routes would otherwise replace a good one. Every request goes
+	 * to the server (conditional on any cached response), so the snapshot is never built from stale
+	 * cached data.
+	 * @return The freshly written snapshot, which is also installed for agency
+	 * @throws IOException if any of the data couldn't be fetched (the existing file and snapshot are then
+	 * left alone), or the file can't be written
+	 */
+	public AgencySnapshot writeSnapshot(String agency, File file) throws IOException {
+		String urlStr = buildUrl(NodeGtfsUrlMaker.QUERY_ROUTES_BY_AGENCY, agency, () -> urlMakr.getRoutesByAgencyString(agency));
+		ArrayList<Route> routes;
+		try {
+			routes = revalidateList(NodeGtfsUrlMaker.QUERY_ROUTES_BY_AGENCY, agency, urlStr, routeListHandler);
+		} catch (IOException e) {
+			throw e;
+		} catch (Exception e) {
+			if(e instanceof InterruptedException) Thread.currentThread().interrupt();
+			throw new IOException("Couldn't fetch the routes of " + agency, e);
+		}
+		if(routes.isEmpty()) throw new IOException("Server returned no routes for " + agency);
+		
+		ArrayList<String> routeIds = new ArrayList<String>();
+		for(Route route : routes) routeIds.add(route.getRouteId());
+		
+		Map<String, List<SimpleStop>> stops = fetchStopListsByRoutes(agency, routeIds, true);
+		for(String route_id : routeIds)
+			if(!stops.containsKey(route_id)) throw new IOException("Couldn't fetch the stops of route " + route_id + " of " + agency);
+		
+		AgencySnapshot.write(file, agency, routes, stops);
+		AgencySnapshot snapshot = AgencySnapshot.open(file);
+		snapshots.put(agency, snapshot);
+		return(snapshot);
+	}
+	
+	/** This method starts serving an agency's route list and stops by route from a snapshot file, so that
+	 * they are available immediately after startup. If the file is missing, unreadable or older than 
+	 * maxAgeMs, a fresh snapshot is downloaded and written in the background (on the async executor); in 
+	 * the meantime, a stale snapshot is still served, and without one queries go to the server as usual.
+	 * The age is checked again whenever the snapshot serves a query, so a long-running process keeps 
+	 * refreshing it every maxAgeMs. A refresh that fails is retried after SNAPSHOT_RETRY_MS at the earliest.
+	 * @param agency The agency to load
+	 * @param file The snapshot file
+	 * @param maxAgeMs How old, in milliseconds, the snapshot may be before it is refreshed
+	 * @return The snapshot loaded from file, or null if there was no usable one
+	 */
+	public AgencySnapshot warmStart(String agency, File file, long maxAgeMs) {
+		snapshotSources.put(agency, new SnapshotSource(file, maxAgeMs));
+		AgencySnapshot snapshot = null;
+		if(file.exists()) {
+			try {
+				snapshot = AgencySnapshot.open(file);
+				if(!agency.equals(snapshot.getAgency())) {
+					listener.onError(file + " holds a snapshot of " + snapshot.getAgency() + ", not " + agency, null);
+					snapshot = null;
+				}
+				else snapshots.put(agency, snapshot);
+			} catch (IOException e) {
+				listener.onError("Couldn't read snapshot " + file, e);
+			}
+		}
+		
+		refreshSnapshotIfStale(agency, snapshot);
+		return(snapshot);
+	}
+	
+	/** Where a snapshot loaded by warmStart() came from, and how old it may get */
+	private static class SnapshotSource {
+		final File file;
+		final long maxAgeMs;
+		final AtomicBoolean refreshing = new AtomicBoolean();
+		volatile long retryAtMillis;
+		
+		SnapshotSource(File file, long maxAgeMs) {
+			this.file = file;
+			this.maxAgeMs = maxAgeMs;
+		}
+	}
+	
+	/** Starts a background refresh of agency's snapshot if it came from warmStart() and is missing or
+	 * older than its maxAgeMs, unless a refresh is already running or failed too recently.
+	 * @param snapshot The snapshot currently installed for agency, or null
+	 */
+	private void refreshSnapshotIfStale(final String agency, AgencySnapshot snapshot) {
+		final SnapshotSource source = snapshotSources.get(agency);
+		if(source == null) return;
+		if(snapshot != null && snapshot.getAgeMillis() <= source.maxAgeMs) return;
+		if(System.currentTimeMillis() < source.retryAtMillis || !source.refreshing.compareAndSet(false, true)) return;
+		
+		try {
+			getAsyncExecutor().execute(new Runnable() {
+				public void run() {
+					try { writeSnapshot(agency, source.file); }
+					catch (IOException e) { 
+						source.retryAtMillis = System.currentTimeMillis() + SNAPSHOT_RETRY_MS;
+						listener.onError("Couldn't refresh snapshot " + source.file + "; keeping the current one", e);
+					}
+					finally { source.refreshing.set(false); }
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			source.refreshing.set(false);
+		}
+	}
+	
+	/** Stops serving agency from its snapshot; later queries go to the server (and ResponseCache) again */
+	public void clearSnapshot(String agency) {
+		snapshotSources.remove(agency);
+		snapshots.remove(agency);
+	}
+	
+	/** @return The snapshot agency is being served from, or null if there is none */
+	public AgencySnapshot getSnapshot(String agency) {
+		return(snapshots.get(agency));
+	}
+	
+	/** Sets the StopIndex that location-based stop queries are answered from.
+	 * @param index StopIndex to use, or null to send location-based stop queries to the server
+	 */
+	public void setLocalStopIndex(StopIndex index) {
+		this.localStops = index;
+	}
+	
+	/** @return The StopIndex location-based stop queries are answered from, or null if they go to the server */
+	public StopIndex getLocalStopIndex() {
+		return(localStops);
+	}
+	
+	/** Switches location-based stop queries that go to the server into tiled mode. Instead of asking the
+	 * server for the stops around the exact query point, the fetcher asks for every tile the query 
+	 * touches (see LocationTiles), keeps the stops of each tile that lie inside it, and filters those 
+	 * down to the query's radius. Nearby queries then share tile URLs, and so share ResponseCache entries
+	 * and in-flight requests. If the ResponseCache doesn't cache stops by location yet, enabling tiling
+	 * turns that on, with ResponseCache.DEFAULT_STATIC_TTL_MS; so does setting a ResponseCache while 
+	 * tiling is enabled.
+	 * 
+	 * Queries touching more than LocationTiles.getMaxTilesPerQuery() tiles still go to the server as-is.
+	 * Route queries by location aren't tiled: routes have no position of their own to filter by.
+	 * @param tiles Tile grid to use, or null to send location-based stop queries to the server as-is
+	 */
+	public void setStopTiling(LocationTiles tiles) {
+		cacheStopTiles(responseCache, tiles);
+		this.stopTiles = tiles;
+	}
+	
+	/** Makes cache keep stops by location if tiles is set and it doesn't already */
+	private static void cacheStopTiles(ResponseCache cache, LocationTiles tiles) {
+		if(tiles != null && cache != null && cache.getTtl(NodeGtfsUrlMaker.QUERY_STOPS_BY_LOC) <= 0)
+			cache.setTtl(NodeGtfsUrlMaker.QUERY_STOPS_BY_LOC, ResponseCache.DEFAULT_STATIC_TTL_MS);
+	}
+	
+	/** @return The tile grid location-based stop queries are fetched with, or null if tiling is disabled */
+	public LocationTiles getStopTiling() {
+		return(stopTiles);
+	}
+	
+	/** Answers a location-based stop query from the tiles covering it. Tiles already in the ResponseCache
+	 * are read from it; the rest are fetched in parallel, one on this thread and the others on the async
+	 * executor. Tiles that fail to load, or don't load within getBatchTimeoutMs(), are left out of the result.
+	 * @return Stops within radius miles of (lat, lon), nearest first, or null if the query touches too 
+	 * many tiles to be tiled
+	 */
+	private ArrayList<SimpleStop> fetchStopListByTiles(final LocationTiles tiles, int lat, int lon, double radius) {
+		long [] covering = tiles.covering(lat, lon, radius);
+		if(covering == null) return(null);
+		
+		ResponseCache cache = responseCache;
+		ArrayList<SimpleStop> candidates = new ArrayList<SimpleStop>();
+		LinkedHashMap<Long, String> missing = new LinkedHashMap<Long, String>();
+		for(long tile : covering) {
+			String urlStr = buildUrl(NodeGtfsUrlMaker.QUERY_STOPS_BY_LOC, null, 
+					() -> urlMakr.getStopsByLoc(tiles.centerLat(tile), tiles.centerLon(tile), tiles.fetchRadius(tile)));
+			if(cache != null && cache.contains(urlStr)) 
+				addTileStops(tiles, tile, fetchList(NodeGtfsUrlMaker.QUERY_STOPS_BY_LOC, null, urlStr, stopListHandler), candidates);
+			else missing.put(tile, urlStr);
+		}
+		
+		//The first missing tile is fetched on this thread while the others are fetched asynchronously
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(batchTimeoutMs);
+		Map.Entry<Long, String> first = null;
+		LinkedHashMap<Long, CompletableFuture<ArrayList<SimpleStop>>> pending = new LinkedHashMap<Long, CompletableFuture<ArrayList<SimpleStop>>>();
+		for(final Map.Entry<Long, String> e : missing.entrySet()) {
+			if(first == null) first = e;
+			else pending.put(e.getKey(), supplyAsync(() -> fetchList(NodeGtfsUrlMaker.QUERY_STOPS_BY_LOC, null, e.getValue(), stopListHandler)));
+		}
+		if(first != null) 
+			addTileStops(tiles, first.getKey(), fetchList(NodeGtfsUrlMaker.QUERY_STOPS_BY_LOC, null, first.getValue(), stopListHandler), candidates);
+		
+		for(Map.Entry<Long, CompletableFuture<ArrayList<SimpleStop>>> e : pending.entrySet()) {
+			try { addTileStops(tiles, e.getKey(), e.getValue().get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS), candidates); }
+			catch (TimeoutException ex) { listener.onError("Request for " + missing.get(e.getKey()) + " timed out after " + batchTimeoutMs + " ms", null); }
+			catch (ExecutionException ex) { listener.onError("Request for " + missing.get(e.getKey()) + " failed", ex); }
+			catch (InterruptedException ex) { Thread.currentThread().interrupt(); break; }
+		}
+		
+		//Candidates are the stops of a few tiles, too few to be worth indexing: filter and sort them directly
+		final double [] distance = new double[candidates.size()];
+		ArrayList<Integer> within = new ArrayList<Integer>();
+		for(int i = 0; i < candidates.size(); i++) {
+			SimpleStop stop = candidates.get(i);
+			distance[i] = StopIndex.distanceMiles(lat, lon, stop.lat, stop.lon);
+			if(distance[i] <= radius) within.add(i);
+		}
+		within.sort((a, b) -> Double.compare(distance[a], distance[b]));
+		
+		ArrayList<SimpleStop> result = new ArrayList<SimpleStop>(within.size());
+		for(int i : within) result.add(candidates.get(i));
+		return(result);
+	}
+	
+	/** Adds the stops in tileStops that lie inside tile to candidates */
+	private static void addTileStops(LocationTiles tiles, long tile, List<SimpleStop> tileStops, ArrayList<SimpleStop> candidates) {
+		for(SimpleStop stop : tileStops) 
+			if(tiles.contains(tile, stop.lat, stop.lon)) candidates.add(stop);
 	}
 	
 	
 	/*public ArrayList<SimpleStop> fetchStopListByLatLon(double lat, double lon, double radius) {
 		String urlStr = urlMakr.getStopsByLoc(lat, lon, radius); //get URL for API endpoint
-		String jsonStopList = jsonStringFromURLString(urlStr); //get JSON-formatted route list
-		return(jsonStringToStopList(jsonStopList)); //Convert to list of routes
+		return(fetchList(NodeGtfsUrlMaker.QUERY_STOPS_BY_LOC, urlStr, stopListHandler)); //fetch and convert to list of stops
 	}
 	
 	public ArrayList<SimpleStop> fetchStopListByLatLon(double lat, double lon) {
 		String urlStr = urlMakr.getStopsByLoc(lat, lon); //get URL for API endpoint
-		String jsonStopList = jsonStringFromURLString(urlStr); //get JSON-formatted route list
-		return(jsonStringToStopList(jsonStopList)); //Convert to list of routes
+		return(fetchList(NodeGtfsUrlMaker.QUERY_STOPS_BY_LOC, urlStr, stopListHandler)); //fetch and convert to list of stops
 	}*/
 	
 	
@@ -267,9 +730,15 @@ public class TransitDataFetcher {
 	 * @return ArrayList of Route Objects that has all of the routes filled in per the JSON at the URL
 	 */
 	public ArrayList<Route> fetchRouteList(String agency) {
-		String urlStr = urlMakr.getRoutesByAgencyString(agency); //get URL for API endpoint
-		String jsonRouteList = jsonStringFromURLString(urlStr); //get JSON-formatted route list
-		return(jsonStringToRouteList(jsonRouteList)); //Convert to list of routes
+		AgencySnapshot snapshot = snapshots.get(agency);
+		refreshSnapshotIfStale(agency, snapshot);
+		if(snapshot != null) return(snapshot.getRoutes());
+		return(fetchRouteListFromServer(agency));
+	}
+	
+	private ArrayList<Route> fetchRouteListFromServer(String agency) {
+		String urlStr = buildUrl(NodeGtfsUrlMaker.QUERY_ROUTES_BY_AGENCY, agency, () -> urlMakr.getRoutesByAgencyString(agency)); //get URL for API endpoint
+		return(fetchList(NodeGtfsUrlMaker.QUERY_ROUTES_BY_AGENCY, agency, urlStr, routeListHandler)); //fetch and convert to list of routes
 	}
 	
 	/** This method returns a list of Route Objects when given a latitude, longitude (in microdegrees) 
@@ -281,8 +750,7 @@ public class TransitDataFetcher {
 	 */
 	/*public ArrayList<Route> fetchRouteListByLoc(int lat, int lon, double radius) {
 		String urlStr = urlMakr.getRoutesByLoc(lat, lon, radius); //get URL for API endpoint
-		String jsonRouteList = jsonStringFromURLString(urlStr);
-		return(jsonStringToRouteList(jsonRouteList)); //Convert to list of routes
+		return(fetchList(NodeGtfsUrlMaker.QUERY_ROUTES_BY_LOC, urlStr, routeListHandler)); //fetch and convert to list of routes
 	}*/
 	
 	/** This method will fetch a list of stops given a route name
@@ -292,9 +760,121 @@ public class TransitDataFetcher {
 	 * @return A List of SimpleStops reprensting the stops on the route denoted by route_id
 	 */
 	public ArrayList<SimpleStop> fetchStopListByRoute(String agency, String route_id) {
-		String urlStr = urlMakr.getStopsByRoute(agency, route_id);
-		String jsonStopList = jsonStringFromURLString(urlStr);
-		return(jsonStringToStopList(jsonStopList));
+		AgencySnapshot snapshot = snapshots.get(agency);
+		refreshSnapshotIfStale(agency, snapshot);
+		if(snapshot != null) {
+			ArrayList<SimpleStop> stops = snapshot.getStopsByRoute(route_id);
+			if(stops != null) return(stops);
+		}
+		
+		String urlStr = buildUrl(NodeGtfsUrlMaker.QUERY_STOPS_BY_ROUTE, agency, () -> urlMakr.getStopsByRoute(agency, route_id));
+		return(fetchList(NodeGtfsUrlMaker.QUERY_STOPS_BY_ROUTE, agency, urlStr, stopListHandler)); //fetch and convert to list of stops
+	}
+	
+	/** This method fetches the stop lists of many routes at once, running up to getBatchParallelism() 
+	 * requests in parallel on the async executor. Any route whose request fails, or runs for longer than
+	 * getBatchTimeoutMs(), is left out of the result rather than failing the whole batch, as are routes 
+	 * not fetched within getBatchDeadlineMs() of the call.
+	 * @param agency The agency the routes belong to
+	 * @param routeIds The Route IDs to fetch stops for
+	 * @return Map from route ID to that route's stops, in the order of routeIds, for every route that 
+	 * could be fetched
+	 */
+	public Map<String, List<SimpleStop>> fetchStopListsByRoutes(String agency, Collection<String> routeIds) {
+		return(fetchStopListsByRoutes(agency, routeIds, false));
+	}
+	
+	/** @param revalidate Whether to ask the server even for routes whose stops are in the ResponseCache */
+	private Map<String, List<SimpleStop>> fetchStopListsByRoutes(final String agency, Collection<String> routeIds, final boolean revalidate) {
+		BoundedBatch<String, List<SimpleStop>> batch = new BoundedBatch<String, List<SimpleStop>>(getAsyncExecutor(), 
+				batchParallelism, batchTimeoutMs, batchDeadlineMs, listener);
+		for(final String route_id : routeIds) {
+			batch.add(route_id, new Callable<List<SimpleStop>>() {
+				public List<SimpleStop> call() throws Exception {
+					String urlStr = buildUrl(NodeGtfsUrlMaker.QUERY_STOPS_BY_ROUTE, agency, () -> urlMakr.getStopsByRoute(agency, route_id));
+					if(revalidate) return(revalidateList(NodeGtfsUrlMaker.QUERY_STOPS_BY_ROUTE, agency, urlStr, stopListHandler));
+					return(loadList(NodeGtfsUrlMaker.QUERY_STOPS_BY_ROUTE, agency, urlStr, stopListHandler));
+				}
+			});
+		}
+		return(batch.run());
+	}
+	
+	/** Sets how fetchStopListsByRoutes() runs its requests.
+	 * @param parallelism Maximum number of requests in flight at once (default DEFAULT_BATCH_PARALLELISM)
+	 * @param timeoutMs Maximum time any one request may take, in milliseconds (default DEFAULT_BATCH_TIMEOUT_MS)
+	 */
+	public void setBatchLimits(int parallelism, long timeoutMs) {
+		setBatchLimits(parallelism, timeoutMs, batchDeadlineMs);
+	}
+	
+	/** Sets how fetchStopListsByRoutes() runs its requests.
+	 * @param parallelism Maximum number of requests in flight at once (default DEFAULT_BATCH_PARALLELISM)
+	 * @param timeoutMs Maximum time any one request may take, in milliseconds (default DEFAULT_BATCH_TIMEOUT_MS)
+	 * @param deadlineMs Maximum time the whole batch may take, in milliseconds, or 0 for no limit 
+	 * (default DEFAULT_BATCH_DEADLINE_MS)
+	 */
+	public void setBatchLimits(int parallelism, long timeoutMs, long deadlineMs) {
+		if(parallelism < 1) throw new IllegalArgumentException("parallelism must be at least 1");
+		this.batchParallelism = parallelism;
+		this.batchTimeoutMs = timeoutMs;
+		this.batchDeadlineMs = deadlineMs;
+	}
+	
+	public int getBatchParallelism() { return batchParallelism; }
+	public long getBatchTimeoutMs() { return batchTimeoutMs; }
+	public long getBatchDeadlineMs() { return batchDeadlineMs; }
+	
+	/** This method fetches the stops on a route straight into a StopTable, without creating a SimpleStop
+	 * per stop. Responses fetched this way bypass the ResponseCache.
+	 * @param agency the Agency within which to look for stops
+	 * @param route_id The Route ID for which to fetch a list of stops
+	 * @param table The StopTable to append the stops to
+	 * @return The number of stops appended to table (0 if they couldn't be fetched)
+	 */
+	public int fetchStopTableByRoute(String agency, String route_id, StopTable table) {
+		return(fetchStopTableByRoute(agency, route_id, null, table));
+	}
+	
+	/** This method fetches every stop of every route of an agency into a single StopTable. A stop served
+	 * by several routes appears once per route, with the route's short name as its routeName.
+	 * @param agency The agency to fetch stops for
+	 * @return StopTable holding the agency's stops
+	 */
+	public StopTable fetchStopTable(String agency) {
+		StopTable table = new StopTable();
+		for(Route route : fetchRouteList(agency)) 
+			fetchStopTableByRoute(agency, route.getRouteId(), route.getShortName(), table);
+		table.trimToSize();
+		return(table);
+	}
+	
+	private int fetchStopTableByRoute(String agency, String route_id, final String routeName, final StopTable table) {
+		String urlStr = buildUrl(NodeGtfsUrlMaker.QUERY_STOPS_BY_ROUTE, agency, () -> urlMakr.getStopsByRoute(agency, route_id));
+		HttpTransport.Exchange exchange = new HttpTransport.Exchange(NodeGtfsUrlMaker.getQueryName(NodeGtfsUrlMaker.QUERY_STOPS_BY_ROUTE), agency);
+		int added = -1;
+		try {
+			added = send(urlStr, new HttpTransport.ResponseHandler<Integer>() {
+				public Integer handle(Reader body) throws JSONException {
+					FetchEvents.Decode decode = new FetchEvents.Decode();
+					decode.begin();
+					int n = JSONStreamDecoder.decodeStopTable(body, table, routeName, listener);
+					decode.end();
+					if(decode.shouldCommit()) { 
+						decode.describe(exchange, urlStr);
+						decode.bytes = exchange.getBytesReceived();
+						decode.objects = n;
+						decode.commit(); 
+					}
+					return(n);
+				}
+			}, exchange);
+			listener.onResponse(NodeGtfsUrlMaker.QUERY_STOPS_BY_ROUTE, urlStr, added, exchange);
+		}
+		catch (IOException e) { listener.onRequestFailed(NodeGtfsUrlMaker.QUERY_STOPS_BY_ROUTE, urlStr, e); }
+		catch (JSONException e) { listener.onRequestFailed(NodeGtfsUrlMaker.QUERY_STOPS_BY_ROUTE, urlStr, e); }
+		finally { recordRequest(NodeGtfsUrlMaker.QUERY_STOPS_BY_ROUTE, exchange, added); }
+		return(Math.max(added, 0));
 	}
 	
 	/** This method returns a List of Predictions given an agency, route_id, stop_id, and an optional
@@ -308,14 +888,125 @@ public class TransitDataFetcher {
 	 * of the Prediction class, in Prediction.java.
 	 */
 	public ArrayList<Prediction> fetchPredictionByStop(String agency, String route_id, String stop_id, String direction) {
-		String urlStr = urlMakr.getStopDetails(agency, route_id, stop_id, direction);
-		String jsonTimesList = jsonStringFromURLString(urlStr);
-		return(jsonStringToPredictionList(jsonTimesList));	
+		String urlStr = buildUrl(NodeGtfsUrlMaker.QUERY_STOP_DETAILS_BY_ROUTE, agency, () -> urlMakr.getStopDetails(agency, route_id, stop_id, direction));
+		return(fetchList(NodeGtfsUrlMaker.QUERY_STOP_DETAILS_BY_ROUTE, agency, urlStr, predictionListHandler));
 	}
 	public ArrayList<Prediction> fetchPredictionByStop(String agency, String route_id, String stop_id) {
 		return(fetchPredictionByStop(agency, route_id, stop_id, null));
 	}
 	
+	/** Same as fetchPredictionByStop(String, String, String, String), but a failed request throws instead
+	 * of returning an empty list (it is still reported to the FetchListener), so that callers such as
+	 * PredictionPoller can tell "no arrivals" from "no answer".
+	 * @throws Exception if the predictions couldn't be fetched or decoded
+	 */
+	ArrayList<Prediction> loadPredictionByStop(String agency, String route_id, String stop_id, String direction) throws Exception {
+		String urlStr = buildUrl(NodeGtfsUrlMaker.QUERY_STOP_DETAILS_BY_ROUTE, agency, () -> urlMakr.getStopDetails(agency, route_id, stop_id, direction));
+		try { return(loadList(NodeGtfsUrlMaker.QUERY_STOP_DETAILS_BY_ROUTE, agency, urlStr, predictionListHandler)); }
+		catch (Exception e) {
+			listener.onRequestFailed(NodeGtfsUrlMaker.QUERY_STOP_DETAILS_BY_ROUTE, urlStr, e);
+			throw e;
+		}
+	}
+
+	/* Asynchronous versions of the fetch* methods. Each one runs the corresponding blocking fetch* method
+	 * on this fetcher's async Executor (see setAsyncExecutor()) and completes the returned future with its
+	 * result, so that a single caller thread can have many node-gtfs queries in flight at once.
+	 */
+	
+	/** Asynchronous version of fetchRouteList(String) */
+	public CompletableFuture<List<Route>> fetchRouteListAsync(final String agency) {
+		return(supplyAsync(() -> fetchRouteList(agency)));
+	}
+	
+	/** Asynchronous version of fetchStopListByRoute(String, String) */
+	public CompletableFuture<List<SimpleStop>> fetchStopListByRouteAsync(final String agency, final String route_id) {
+		return(supplyAsync(() -> fetchStopListByRoute(agency, route_id)));
+	}
+	
+	/** Asynchronous version of fetchStopListByLatLon(int, int, double) */
+	public CompletableFuture<List<SimpleStop>> fetchStopListByLatLonAsync(final int lat, final int lon, final double radius) {
+		return(supplyAsync(() -> fetchStopListByLatLon(lat, lon, radius)));
+	}
+	
+	/** Asynchronous version of fetchStopListByLatLon(int, int) */
+	public CompletableFuture<List<SimpleStop>> fetchStopListByLatLonAsync(final int lat, final int lon) {
+		return(supplyAsync(() -> fetchStopListByLatLon(lat, lon)));
+	}
+	
+	/** Asynchronous version of fetchRouteListByLatLon(int, int, double) */
+	public CompletableFuture<List<Route>> fetchRouteListByLatLonAsync(final int lat, final int lon, final double radius) {
+		return(supplyAsync(() -> fetchRouteListByLatLon(lat, lon, radius)));
+	}
+	
+	/** Asynchronous version of fetchRouteListByLatLon(int, int) */
+	public CompletableFuture<List<Route>> fetchRouteListByLatLonAsync(final int lat, final int lon) {
+		return(supplyAsync(() -> fetchRouteListByLatLon(lat, lon)));
+	}
+	
+	/** Asynchronous version of fetchRouteListByLatLon(double, double, double) */
+	public CompletableFuture<List<Route>> fetchRouteListByLatLonAsync(final double lat, final double lon, final double radius) {
+		return(supplyAsync(() -> fetchRouteListByLatLon(lat, lon, radius)));
+	}
+	
+	/** Asynchronous version of fetchRouteListByLatLon(double, double) */
+	public CompletableFuture<List<Route>> fetchRouteListByLatLonAsync(final double lat, final double lon) {
+		return(supplyAsync(() -> fetchRouteListByLatLon(lat, lon)));
+	}
+	
+	/** Asynchronous version of fetchPredictionByStop(String, String, String, String) */
+	public CompletableFuture<List<Prediction>> fetchPredictionByStopAsync(final String agency, final String route_id, 
+			final String stop_id, final String direction) {
+		return(supplyAsync(() -> fetchPredictionByStop(agency, route_id, stop_id, direction)));
+	}
+	
+	/** Asynchronous version of fetchPredictionByStop(String, String, String) */
+	public CompletableFuture<List<Prediction>> fetchPredictionByStopAsync(String agency, String route_id, String stop_id) {
+		return(fetchPredictionByStopAsync(agency, route_id, stop_id, null));
+	}
+	
+	/** Sets the Executor that the *Async methods run their requests on. 
+	 * @param executor Executor to use, or null to go back to the default (see getDefaultAsyncExecutor())
+	 */
+	public void setAsyncExecutor(Executor executor) {
+		this.asyncExecutor = executor;
+	}
+	
+	/** @return The Executor that the *Async methods run their requests on */
+	public Executor getAsyncExecutor() {
+		Executor e = asyncExecutor;
+		return(e != null ? e : getDefaultAsyncExecutor());
+	}
+	
+	/** Returns the Executor used by fetchers that haven't been given one with setAsyncExecutor(). On JVMs
+	 * that support virtual threads this starts a new virtual thread per task, so blocked requests don't hold 
+	 * on to a platform thread; on older JVMs it falls back to a cached pool of daemon threads.
+	 * @return The shared default async Executor
+	 */
+	public static synchronized Executor getDefaultAsyncExecutor() {
+		if(defaultAsyncExecutor == null) {
+			try {
+				//Looked up reflectively so that this class still builds and runs on pre-virtual-thread JDKs
+				Method m = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+				defaultAsyncExecutor = (Executor) m.invoke(null);
+			} catch (Exception e) {
+				defaultAsyncExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+					private final AtomicInteger count = new AtomicInteger();
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "node-gtfs-async-" + count.incrementAndGet());
+						t.setDaemon(true);
+						return(t);
+					}
+				});
+			}
+		}
+		return(defaultAsyncExecutor);
+	}
+	
+	private <T> CompletableFuture<T> supplyAsync(Supplier<T> request) {
+		return(CompletableFuture.supplyAsync(request, getAsyncExecutor()));
+	}
+	
 	/** The main() method simply implements some tests (which are enabled/disabled by the boolean "defines" 
 	 * at the top of the TransitDataFetcher class). 
 	 * @param args
@@ -378,7 +1069,134 @@ public class TransitDataFetcher {
 			testEngine.fetchPredictionByStop("abq-ride", "1914", "6384");
 		}
 		
+		if(TEST_OFFLINE) error_count += offlineChecks();
+		
 		System.err.printf("Got %d errors, %s", error_count, error_count>0?"FAIL":"PASS");
 
 	}
+	
+	/** Checks the parts of the client that don't talk to the server: the stop index, latency histogram,
+	 * GTFS time arithmetic, JSON pull parser and response cache.
+	 * @return The number of errors found
+	 */
+	private static int offlineChecks() {
+		int error_count = 0;
+		Random random = new Random(42);
+		
+		//StopIndex: radius and nearest-k searches against a brute-force scan of the same stops
+		ArrayList<SimpleStop> stops = new ArrayList<SimpleStop>();
+		for(int i = 0; i < 5000; i++) {
+			SimpleStop stop = new SimpleStop();
+			stop.lat = 37700000 + random.nextInt(300000);
+			stop.lon = -122300000 + random.nextInt(300000);
+			stop.agency = (i % 2 == 0) ? "ac-transit" : "bart";
+			stops.add(stop);
+		}
+		StopIndex index = new StopIndex(stops);
+		for(int q = 0; q < 50; q++) {
+			int lat = 37700000 + random.nextInt(300000), lon = -122300000 + random.nextInt(300000);
+			double radius = 0.1 + random.nextDouble();
+			
+			int expected = 0;
+			for(SimpleStop stop : stops) if(StopIndex.distanceMiles(lat, lon, stop.lat, stop.lon) <= radius) expected++;
+			ArrayList<SimpleStop> found = index.withinRadius(lat, lon, radius);
+			IdentityHashMap<SimpleStop, Boolean> distinct = new IdentityHashMap<SimpleStop, Boolean>();
+			boolean inside = true;
+			for(SimpleStop stop : found) {
+				distinct.put(stop, Boolean.TRUE);
+				inside = inside && StopIndex.distanceMiles(lat, lon, stop.lat, stop.lon) <= radius;
+			}
+			if(found.size() != expected || distinct.size() != expected || !inside) {
+				System.out.println("ERROR: withinRadius found " + found.size() + " stops, expected " + expected); error_count++;
+			}
+			
+			for(String agency : new String[] { null, "bart" }) {
+				int k = 1 + random.nextInt(20), n = 0;
+				double [] brute = new double[stops.size()];
+				for(SimpleStop stop : stops) {
+					if(agency == null || agency.equals(stop.agency)) brute[n++] = StopIndex.distanceMiles(lat, lon, stop.lat, stop.lon);
+				}
+				Arrays.sort(brute, 0, n);
+				ArrayList<SimpleStop> nearest = index.nearest(lat, lon, k, agency);
+				boolean same = nearest.size() == Math.min(k, n);
+				for(int i = 0; same && i < nearest.size(); i++) {
+					SimpleStop stop = nearest.get(i);
+					same = Math.abs(StopIndex.distanceMiles(lat, lon, stop.lat, stop.lon) - brute[i]) < 1e-9
+							&& (agency == null || agency.equals(stop.agency));
+				}
+				if(!same) { System.out.println("ERROR: nearest(" + k + ", " + agency + ") doesn't match a brute-force scan"); error_count++; }
+			}
+		}
+		
+		//LatencyHistogram: percentiles within 1% of the exact ones, over values spanning 1 us to 1 s
+		LatencyHistogram histogram = new LatencyHistogram();
+		long [] latencies = new long[100000];
+		for(int i = 0; i < latencies.length; i++) {
+			latencies[i] = (long) Math.pow(10, 3 + 6 * random.nextDouble());
+			histogram.record(latencies[i]);
+		}
+		Arrays.sort(latencies);
+		for(double percentile : new double[] { 50, 90, 99, 99.9, 100 }) {
+			long exact = latencies[(int) Math.ceil(percentile / 100 * latencies.length) - 1];
+			long reported = histogram.getValueAtPercentile(percentile);
+			if(Math.abs(reported - exact) > exact / 100) {
+				System.out.println("ERROR: p" + percentile + " is " + reported + " ns, expected " + exact + " ns"); error_count++;
+			}
+		}
+		if(histogram.getCount() != latencies.length || histogram.getMax() != latencies[latencies.length - 1]) {
+			System.out.println("ERROR: LatencyHistogram count or max is wrong"); error_count++;
+		}
+		
+		//GtfsTime: service-day times past 24:00 and roll-over around midnight
+		if(GtfsTime.parseSeconds("24:00:00") != GtfsTime.SECONDS_PER_DAY || GtfsTime.parseSeconds(" 25:10:00") != 25 * 3600 + 600
+				|| GtfsTime.parseSeconds("5:07:00") != 5 * 3600 + 420) {
+			System.out.println("ERROR: GtfsTime.parseSeconds() got a valid time wrong"); error_count++;
+		}
+		if(GtfsTime.parseSeconds("05:60:00") != GtfsTime.INVALID || GtfsTime.parseSeconds("05:07") != GtfsTime.INVALID
+				|| GtfsTime.parseSeconds("5:07:00pm") != GtfsTime.INVALID) {
+			System.out.println("ERROR: GtfsTime.parseSeconds() accepted an invalid time"); error_count++;
+		}
+		if(GtfsTime.secondsUntil(GtfsTime.parseSeconds("25:10:00"), 3600) != 600
+				|| GtfsTime.secondsUntil(GtfsTime.parseSeconds("00:10:00"), 23 * 3600 + 50 * 60) != 1200
+				|| GtfsTime.secondsUntil(GtfsTime.parseSeconds("23:50:00"), 600) != -1200
+				|| GtfsTime.secondsUntil(GtfsTime.parseSeconds("12:00:00"), 11 * 3600) != 3600) {
+			System.out.println("ERROR: GtfsTime.secondsUntil() got the service day wrong"); error_count++;
+		}
+		
+		//JSONPullParser: string escapes and number conversions
+		try {
+			JSONPullParser p = new JSONPullParser(new StringReader(
+					"[\"a\\\"b\\\\c\\/d\\u00e9\\n\", -12, 3.5e2, 37.8694, -122.26812, \"37.1234567\", 2147483648]"));
+			boolean ok = p.next() == JSONPullParser.START_ARRAY;
+			ok = ok && p.next() == JSONPullParser.STRING && p.stringValue().equals("a\"b\\c/d\u00e9\n");
+			ok = ok && p.next() == JSONPullParser.NUMBER && p.intValue() == -12;
+			ok = ok && p.next() == JSONPullParser.NUMBER && p.intValue() == 350;
+			ok = ok && p.next() == JSONPullParser.NUMBER && p.microDegreesValue() == 37869400;
+			ok = ok && p.next() == JSONPullParser.NUMBER && p.microDegreesValue() == -122268120;
+			ok = ok && p.next() == JSONPullParser.STRING && p.microDegreesValue() == 37123456;
+			ok = ok && p.next() == JSONPullParser.NUMBER && p.stringValue().equals("2147483648");
+			ok = ok && p.next() == JSONPullParser.END_ARRAY && p.next() == JSONPullParser.END_DOCUMENT;
+			if(!ok) { System.out.println("ERROR: JSONPullParser misread escapes or numbers"); error_count++; }
+		} catch (JSONException e) { System.out.println("ERROR: JSONPullParser threw " + e); error_count++; }
+		
+		//ResponseCache: entries expire at their TTL, and the least recently used entry is evicted first
+		ResponseCache cache = new ResponseCache(2);
+		cache.setMaxStaleness(0);
+		cache.setTtl(NodeGtfsUrlMaker.QUERY_STOP_DETAILS_BY_ROUTE, 50);
+		cache.put(NodeGtfsUrlMaker.QUERY_STOP_DETAILS_BY_ROUTE, "times", "t");
+		cache.put(NodeGtfsUrlMaker.QUERY_ROUTES_BY_AGENCY, "routes", "r");
+		if(!"t".equals(cache.get("times"))) { System.out.println("ERROR: ResponseCache lost a fresh entry"); error_count++; }
+		try { Thread.sleep(100); } catch (InterruptedException e) { Thread.currentThread().interrupt(); }
+		if(cache.get("times") != null) { System.out.println("ERROR: ResponseCache served an expired entry"); error_count++; }
+		
+		cache.put(NodeGtfsUrlMaker.QUERY_STOPS_BY_ROUTE, "stops-a", "a");
+		cache.get("routes"); //now "stops-a" is the least recently used
+		cache.put(NodeGtfsUrlMaker.QUERY_STOPS_BY_ROUTE, "stops-b", "b");
+		if(cache.size() != 2 || cache.contains("stops-a") || !cache.contains("routes") || !cache.contains("stops-b")) {
+			System.out.println("ERROR: ResponseCache didn't evict the least recently used entry"); error_count++;
+		}
+		
+		System.out.println("Offline checks found " + error_count + " errors");
+		return(error_count);
+	}
 }